@@ -81,6 +81,7 @@ import java.net.URL;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -297,6 +298,7 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
 
         // Hosts file settings
         Preference pref_block_domains = screen.findPreference("use_hosts");
+        Preference pref_block_subdomains = screen.findPreference("hosts_subdomains");
         EditTextPreference pref_rcode = (EditTextPreference) screen.findPreference("rcode");
         Preference pref_hosts_import = screen.findPreference("hosts_import");
         EditTextPreference pref_hosts_url = (EditTextPreference) screen.findPreference("hosts_url");
@@ -308,6 +310,7 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
             Log.i(TAG, "Play store install");
             cat_options.removePreference(screen.findPreference("update_check"));
             cat_advanced.removePreference(pref_block_domains);
+            cat_advanced.removePreference(pref_block_subdomains);
             cat_advanced.removePreference(pref_rcode);
             cat_advanced.removePreference(pref_forwarding);
             cat_backup.removePreference(pref_hosts_import);
@@ -532,6 +535,9 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         else if ("ip6".equals(name))
             ServiceSinkhole.reload("changed " + name, this, false);
 
+        else if ("async_verdicts".equals(name))
+            ServiceSinkhole.reload("changed " + name, this, false);
+
         else if ("wifi_homes".equals(name)) {
             MultiSelectListPreference pref_wifi_homes = (MultiSelectListPreference) getPreferenceScreen().findPreference(name);
             Set<String> ssid = prefs.getStringSet(name, new HashSet<String>());
@@ -610,6 +616,9 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         } else if ("use_hosts".equals(name))
             ServiceSinkhole.reload("changed " + name, this, false);
 
+        else if ("hosts_subdomains".equals(name))
+            ServiceSinkhole.reload("changed " + name, this, false);
+
         else if ("vpn4".equals(name)) {
             String vpn4 = prefs.getString(name, null);
             try {
@@ -1027,42 +1036,22 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         xmlExport(PreferenceManager.getDefaultSharedPreferences(this), serializer);
         serializer.endTag(null, "application");
 
-        serializer.startTag(null, "wifi");
-        xmlExport(getSharedPreferences("wifi", Context.MODE_PRIVATE), serializer);
-        serializer.endTag(null, "wifi");
-
-        serializer.startTag(null, "mobile");
-        xmlExport(getSharedPreferences("other", Context.MODE_PRIVATE), serializer);
-        serializer.endTag(null, "mobile");
-
-        serializer.startTag(null, "screen_wifi");
-        xmlExport(getSharedPreferences("screen_wifi", Context.MODE_PRIVATE), serializer);
-        serializer.endTag(null, "screen_wifi");
-
-        serializer.startTag(null, "screen_other");
-        xmlExport(getSharedPreferences("screen_other", Context.MODE_PRIVATE), serializer);
-        serializer.endTag(null, "screen_other");
-
-        serializer.startTag(null, "roaming");
-        xmlExport(getSharedPreferences("roaming", Context.MODE_PRIVATE), serializer);
-        serializer.endTag(null, "roaming");
-
-        serializer.startTag(null, "lockdown");
-        xmlExport(getSharedPreferences("lockdown", Context.MODE_PRIVATE), serializer);
-        serializer.endTag(null, "lockdown");
-
-        serializer.startTag(null, "apply");
-        xmlExport(getSharedPreferences("apply", Context.MODE_PRIVATE), serializer);
-        serializer.endTag(null, "apply");
-
-        serializer.startTag(null, "notify");
-        xmlExport(getSharedPreferences("notify", Context.MODE_PRIVATE), serializer);
-        serializer.endTag(null, "notify");
+        // Application rules, a section per flag like the former preferences files
+        for (int i = 0; i < Rule.FLAG_NAMES.length; i++) {
+            String tag = ("other".equals(Rule.FLAG_NAMES[i]) ? "mobile" : Rule.FLAG_NAMES[i]);
+            serializer.startTag(null, tag);
+            ruleExport(1 << i, serializer);
+            serializer.endTag(null, tag);
+        }
 
         serializer.startTag(null, "filter");
         filterExport(serializer);
         serializer.endTag(null, "filter");
 
+        serializer.startTag(null, "cidr");
+        cidrExport(serializer);
+        serializer.endTag(null, "cidr");
+
         serializer.startTag(null, "forward");
         forwardExport(serializer);
         serializer.endTag(null, "forward");
@@ -1114,6 +1103,22 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         }
     }
 
+    private void ruleExport(int flag, XmlSerializer serializer) throws IOException {
+        Cursor cursor = DatabaseHelper.getInstance(this).getRules();
+        int colPackage = cursor.getColumnIndex("package");
+        int colFlags = cursor.getColumnIndex("flags");
+        int colMask = cursor.getColumnIndex("mask");
+        while (cursor.moveToNext())
+            if ((cursor.getInt(colMask) & flag) != 0) {
+                serializer.startTag(null, "setting");
+                serializer.attribute(null, "key", cursor.getString(colPackage));
+                serializer.attribute(null, "type", "boolean");
+                serializer.attribute(null, "value", Boolean.toString((cursor.getInt(colFlags) & flag) != 0));
+                serializer.endTag(null, "setting");
+            }
+        cursor.close();
+    }
+
     private void filterExport(XmlSerializer serializer) throws IOException {
         Cursor cursor = DatabaseHelper.getInstance(this).getAccess();
         int colUid = cursor.getColumnIndex("uid");
@@ -1138,6 +1143,24 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         cursor.close();
     }
 
+    private void cidrExport(XmlSerializer serializer) throws IOException {
+        Cursor cursor = DatabaseHelper.getInstance(this).getCidr();
+        int colUid = cursor.getColumnIndex("uid");
+        int colAddress = cursor.getColumnIndex("address");
+        int colPrefix = cursor.getColumnIndex("prefix");
+        int colBlock = cursor.getColumnIndex("block");
+        while (cursor.moveToNext())
+            for (String pkg : getPackages(cursor.getInt(colUid))) {
+                serializer.startTag(null, "range");
+                serializer.attribute(null, "pkg", pkg);
+                serializer.attribute(null, "address", cursor.getString(colAddress));
+                serializer.attribute(null, "prefix", Integer.toString(cursor.getInt(colPrefix)));
+                serializer.attribute(null, "block", Integer.toString(cursor.getInt(colBlock)));
+                serializer.endTag(null, "range");
+            }
+        cursor.close();
+    }
+
     private void forwardExport(XmlSerializer serializer) throws IOException {
         Cursor cursor = DatabaseHelper.getInstance(this).getForwarding();
         int colProtocol = cursor.getColumnIndex("protocol");
@@ -1186,14 +1209,9 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         reader.parse(new InputSource(in));
 
         xmlImport(handler.application, prefs);
-        xmlImport(handler.wifi, getSharedPreferences("wifi", Context.MODE_PRIVATE));
-        xmlImport(handler.mobile, getSharedPreferences("other", Context.MODE_PRIVATE));
-        xmlImport(handler.screen_wifi, getSharedPreferences("screen_wifi", Context.MODE_PRIVATE));
-        xmlImport(handler.screen_other, getSharedPreferences("screen_other", Context.MODE_PRIVATE));
-        xmlImport(handler.roaming, getSharedPreferences("roaming", Context.MODE_PRIVATE));
-        xmlImport(handler.lockdown, getSharedPreferences("lockdown", Context.MODE_PRIVATE));
-        xmlImport(handler.apply, getSharedPreferences("apply", Context.MODE_PRIVATE));
-        xmlImport(handler.notify, getSharedPreferences("notify", Context.MODE_PRIVATE));
+        ruleImport(Arrays.asList(
+                handler.wifi, handler.mobile, handler.screen_wifi, handler.screen_other, handler.roaming,
+                handler.lockdown, handler.apply, handler.notify, handler.notify_security_problem));
 
         // Upgrade imported settings
         ReceiverAutostart.upgrade(true, this);
@@ -1205,6 +1223,24 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         prefs.registerOnSharedPreferenceChangeListener(this);
     }
 
+    // Settings by flag in the order of Rule.FLAG_NAMES
+    private void ruleImport(List<Map<String, Object>> listSettings) {
+        Map<String, int[]> mapRule = new HashMap<>();
+        for (int i = 0; i < listSettings.size(); i++) {
+            Map<String, Object> settings = listSettings.get(i);
+            for (String pkg : settings.keySet())
+                if (settings.get(pkg) instanceof Boolean) {
+                    if (!mapRule.containsKey(pkg))
+                        mapRule.put(pkg, new int[2]);
+                    int[] rule = mapRule.get(pkg);
+                    if ((Boolean) settings.get(pkg))
+                        rule[0] |= (1 << i);
+                    rule[1] |= (1 << i);
+                }
+        }
+        DatabaseHelper.getInstance(this).setRules(mapRule);
+    }
+
     private void xmlImport(Map<String, Object> settings, SharedPreferences prefs) {
         SharedPreferences.Editor editor = prefs.edit();
 
@@ -1243,6 +1279,7 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         public Map<String, Object> lockdown = new HashMap<>();
         public Map<String, Object> apply = new HashMap<>();
         public Map<String, Object> notify = new HashMap<>();
+        public Map<String, Object> notify_security_problem = new HashMap<>();
         private Map<String, Object> current = null;
 
         public XmlImportHandler(Context context) {
@@ -1281,11 +1318,19 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
             else if (qName.equals("notify"))
                 current = notify;
 
+            else if (qName.equals("notify_security_problem"))
+                current = notify_security_problem;
+
             else if (qName.equals("filter")) {
                 current = null;
                 Log.i(TAG, "Clearing filters");
                 DatabaseHelper.getInstance(context).clearAccess();
 
+            } else if (qName.equals("cidr")) {
+                current = null;
+                Log.i(TAG, "Clearing ranges");
+                DatabaseHelper.getInstance(context).clearCidr();
+
             } else if (qName.equals("forward")) {
                 current = null;
                 Log.i(TAG, "Clearing forwards");
@@ -1358,6 +1403,19 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
                     Log.w(TAG, "Package not found pkg=" + pkg);
                 }
 
+            } else if (qName.equals("range")) {
+                String pkg = attributes.getValue("pkg");
+                String address = attributes.getValue("address");
+                int prefix = Integer.parseInt(attributes.getValue("prefix"));
+                int block = Integer.parseInt(attributes.getValue("block"));
+
+                try {
+                    int uid = getUid(pkg);
+                    DatabaseHelper.getInstance(context).addCidr(uid, address, prefix, block > 0);
+                } catch (PackageManager.NameNotFoundException ex) {
+                    Log.w(TAG, "Package not found pkg=" + pkg);
+                }
+
             } else if (qName.equals("port")) {
                 String pkg = attributes.getValue("pkg");
                 int protocol = Integer.parseInt(attributes.getValue("protocol"));
@@ -69,9 +69,13 @@ import android.widget.PopupMenu;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import java.net.InetAddress;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> implements Filterable {
     private static final String TAG = "NetGuard.Adapter";
@@ -383,7 +387,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean isChecked) {
                 rule.wifi_blocked = isChecked;
-                updateRule(rule, true, listAll);
+                updateRule(rule, listAll);
             }
         });
 
@@ -408,7 +412,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean isChecked) {
                 rule.other_blocked = isChecked;
-                updateRule(rule, true, listAll);
+                updateRule(rule, listAll);
             }
         });
 
@@ -488,7 +492,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean isChecked) {
                 rule.apply = isChecked;
-                updateRule(rule, true, listAll);
+                updateRule(rule, listAll);
             }
         });
 
@@ -507,7 +511,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 rule.screen_wifi = isChecked;
-                updateRule(rule, true, listAll);
+                updateRule(rule, listAll);
             }
         });
 
@@ -526,7 +530,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 rule.screen_other = isChecked;
-                updateRule(rule, true, listAll);
+                updateRule(rule, listAll);
             }
         });
 
@@ -539,7 +543,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
             @TargetApi(Build.VERSION_CODES.M)
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 rule.roaming = isChecked;
-                updateRule(rule, true, listAll);
+                updateRule(rule, listAll);
             }
         });
 
@@ -558,7 +562,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
             @TargetApi(Build.VERSION_CODES.M)
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 rule.lockdown = isChecked;
-                updateRule(rule, true, listAll);
+                updateRule(rule, listAll);
             }
         });
 
@@ -720,6 +724,60 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
                     markPro(popup.getMenu().findItem(R.id.menu_allow), ActivityPro.SKU_FILTER);
                     markPro(popup.getMenu().findItem(R.id.menu_block), ActivityPro.SKU_FILTER);
 
+                    // Wildcard rule for the parent domain
+                    int dot = daddr.indexOf('.');
+                    final String domain = (dot < 0 ? null : daddr.substring(dot + 1));
+                    if (daddr.startsWith("*.") || Util.isNumericAddress(daddr) ||
+                            domain == null || Util.isPublicSuffix(domain))
+                        popup.getMenu().removeItem(R.id.menu_block_domain);
+                    else {
+                        popup.getMenu().findItem(R.id.menu_block_domain).setTitle(context.getString(R.string.title_block_domain, domain));
+                        markPro(popup.getMenu().findItem(R.id.menu_block_domain), ActivityPro.SKU_FILTER);
+                    }
+
+                    // Range rule for the surrounding addresses
+                    final IPUtil.CIDR range;
+                    String rangeAddress = null;
+                    int rangePrefix = 0;
+                    if (Util.isNumericAddress(daddr)) {
+                        int prefix = (version == 4 ? 24 : 64);
+                        range = new IPUtil.CIDR(new IPUtil.CIDR(daddr, prefix).getStart(), prefix);
+
+                        Cursor cidr = null;
+                        try {
+                            cidr = DatabaseHelper.getInstance(context).getCidr(rule.uid);
+                            while (cidr.moveToNext()) {
+                                String address = cidr.getString(cidr.getColumnIndex("address"));
+                                int bits = cidr.getInt(cidr.getColumnIndex("prefix"));
+                                InetAddress start = new IPUtil.CIDR(address, bits).getStart();
+                                if (start != null && start.equals(new IPUtil.CIDR(daddr, bits).getStart())) {
+                                    rangeAddress = address;
+                                    rangePrefix = bits;
+                                    break;
+                                }
+                            }
+                        } finally {
+                            if (cidr != null)
+                                cidr.close();
+                        }
+                    } else
+                        range = null;
+                    final String existingAddress = rangeAddress;
+                    final int existingPrefix = rangePrefix;
+
+                    if (range == null || existingAddress != null)
+                        popup.getMenu().removeItem(R.id.menu_block_range);
+                    else {
+                        popup.getMenu().findItem(R.id.menu_block_range).setTitle(context.getString(R.string.title_block_range,
+                                range.address.getHostAddress() + "/" + range.prefix));
+                        markPro(popup.getMenu().findItem(R.id.menu_block_range), ActivityPro.SKU_FILTER);
+                    }
+                    if (existingAddress == null)
+                        popup.getMenu().removeItem(R.id.menu_reset_range);
+                    else
+                        popup.getMenu().findItem(R.id.menu_reset_range).setTitle(context.getString(R.string.title_reset_range,
+                                existingAddress + "/" + existingPrefix));
+
                     // Whois
                     final Intent lookupIP = new Intent(Intent.ACTION_VIEW, Uri.parse("https://www.tcpiputils.com/whois-lookup/" + daddr));
                     if (pm.resolveActivity(lookupIP, 0) == null)
@@ -771,6 +829,38 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
                                     result = true;
                                     break;
 
+                                case R.id.menu_block_domain:
+                                    if (IAB.isPurchased(ActivityPro.SKU_FILTER, context)) {
+                                        Packet packet = new Packet();
+                                        packet.time = new Date().getTime();
+                                        packet.version = version;
+                                        packet.protocol = protocol;
+                                        packet.daddr = "*." + domain;
+                                        packet.dport = dport;
+                                        packet.uid = rule.uid;
+                                        DatabaseHelper.getInstance(context).updateAccess(packet, null, 1);
+                                        ServiceSinkhole.reload("block domain", context, false);
+                                    } else
+                                        context.startActivity(new Intent(context, ActivityPro.class));
+                                    result = true;
+                                    break;
+
+                                case R.id.menu_block_range:
+                                    if (IAB.isPurchased(ActivityPro.SKU_FILTER, context)) {
+                                        DatabaseHelper.getInstance(context).addCidr(
+                                                rule.uid, range.address.getHostAddress(), range.prefix, true);
+                                        ServiceSinkhole.reload("block range", context, false);
+                                    } else
+                                        context.startActivity(new Intent(context, ActivityPro.class));
+                                    result = true;
+                                    break;
+
+                                case R.id.menu_reset_range:
+                                    DatabaseHelper.getInstance(context).deleteCidr(rule.uid, existingAddress, existingPrefix);
+                                    ServiceSinkhole.reload("reset range", context, false);
+                                    result = true;
+                                    break;
+
                                 case R.id.menu_reset:
                                     DatabaseHelper.getInstance(context).setAccess(id, -1);
                                     ServiceSinkhole.reload("reset host", context, false);
@@ -784,7 +874,8 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
                                     return true;
                             }
 
-                            if (menu == R.id.menu_allow || menu == R.id.menu_block || menu == R.id.menu_reset)
+                            if (menu == R.id.menu_allow || menu == R.id.menu_block ||
+                                    menu == R.id.menu_block_domain || menu == R.id.menu_reset)
                                 new AsyncTask<Object, Object, Long>() {
                                     @Override
                                     protected Long doInBackground(Object... objects) {
@@ -842,7 +933,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean isChecked) {
                 rule.notify = isChecked;
-                updateRule(rule, true, listAll);
+                updateRule(rule, listAll);
             }
         });
 
@@ -854,7 +945,7 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean isChecked) {
                 rule.notify_security_problem = isChecked;
-                updateRule(rule, true, listAll);
+                updateRule(rule, listAll);
             }
         });
     }
@@ -881,68 +972,80 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
         }
     }
 
-    private void updateRule(Rule rule, boolean root, List<Rule> listAll) {
-        SharedPreferences wifi = context.getSharedPreferences("wifi", Context.MODE_PRIVATE);
-        SharedPreferences other = context.getSharedPreferences("other", Context.MODE_PRIVATE);
-        SharedPreferences apply = context.getSharedPreferences("apply", Context.MODE_PRIVATE);
-        SharedPreferences screen_wifi = context.getSharedPreferences("screen_wifi", Context.MODE_PRIVATE);
-        SharedPreferences screen_other = context.getSharedPreferences("screen_other", Context.MODE_PRIVATE);
-        SharedPreferences roaming = context.getSharedPreferences("roaming", Context.MODE_PRIVATE);
-        SharedPreferences lockdown = context.getSharedPreferences("lockdown", Context.MODE_PRIVATE);
-        SharedPreferences notify = context.getSharedPreferences("notify", Context.MODE_PRIVATE);
-        SharedPreferences notify_security_problem = context.getSharedPreferences("notify_security_problem", Context.MODE_PRIVATE);
-
-        if (rule.wifi_blocked == rule.wifi_default)
-            wifi.edit().remove(rule.packageName).apply();
-        else
-            wifi.edit().putBoolean(rule.packageName, rule.wifi_blocked).apply();
+    private void updateRule(final Rule rule, List<Rule> listAll) {
+        // Related packages are written in the same transaction
+        final Map<String, int[]> mapRule = new LinkedHashMap<>();
+        updateRule(rule, new ArrayList<>(listAll), mapRule);
 
-        if (rule.other_blocked == rule.other_default)
-            other.edit().remove(rule.packageName).apply();
-        else
-            other.edit().putBoolean(rule.packageName, rule.other_blocked).apply();
+        notifyDataSetChanged();
+        NotificationManagerCompat.from(context).cancel(rule.uid);
 
-        if (rule.apply)
-            apply.edit().remove(rule.packageName).apply();
-        else
-            apply.edit().putBoolean(rule.packageName, rule.apply).apply();
+        new AsyncTask<Object, Object, Object>() {
+            @Override
+            protected Object doInBackground(Object... objects) {
+                DatabaseHelper.getInstance(context).updateRules(mapRule);
+                return null;
+            }
 
-        if (rule.screen_wifi == rule.screen_wifi_default)
-            screen_wifi.edit().remove(rule.packageName).apply();
-        else
-            screen_wifi.edit().putBoolean(rule.packageName, rule.screen_wifi).apply();
+            @Override
+            protected void onPostExecute(Object result) {
+                ServiceSinkhole.reload("rule changed", context, false);
+            }
+        }.execute();
+    }
 
-        if (rule.screen_other == rule.screen_other_default)
-            screen_other.edit().remove(rule.packageName).apply();
-        else
-            screen_other.edit().putBoolean(rule.packageName, rule.screen_other).apply();
+    private void updateRule(Rule rule, List<Rule> listSearch, Map<String, int[]> mapRule) {
+        // Only settings other than the defaults are stored
+        int flags = 0;
+        int mask = 0;
 
-        if (rule.roaming == rule.roaming_default)
-            roaming.edit().remove(rule.packageName).apply();
-        else
-            roaming.edit().putBoolean(rule.packageName, rule.roaming).apply();
+        if (rule.wifi_blocked != rule.wifi_default) {
+            flags |= (rule.wifi_blocked ? Rule.FLAG_WIFI : 0);
+            mask |= Rule.FLAG_WIFI;
+        }
 
-        if (rule.lockdown)
-            lockdown.edit().putBoolean(rule.packageName, rule.lockdown).apply();
-        else
-            lockdown.edit().remove(rule.packageName).apply();
+        if (rule.other_blocked != rule.other_default) {
+            flags |= (rule.other_blocked ? Rule.FLAG_OTHER : 0);
+            mask |= Rule.FLAG_OTHER;
+        }
 
-        if (rule.notify)
-            notify.edit().remove(rule.packageName).apply();
-        else
-            notify.edit().putBoolean(rule.packageName, rule.notify).apply();
+        if (!rule.apply)
+            mask |= Rule.FLAG_APPLY;
 
-        if (rule.notify_security_problem)
-            notify_security_problem.edit().remove(rule.packageName).apply();
-        else
-            notify_security_problem.edit().putBoolean(rule.packageName, rule.notify_security_problem).apply();
+        if (rule.screen_wifi != rule.screen_wifi_default) {
+            flags |= (rule.screen_wifi ? Rule.FLAG_SCREEN_WIFI : 0);
+            mask |= Rule.FLAG_SCREEN_WIFI;
+        }
+
+        if (rule.screen_other != rule.screen_other_default) {
+            flags |= (rule.screen_other ? Rule.FLAG_SCREEN_OTHER : 0);
+            mask |= Rule.FLAG_SCREEN_OTHER;
+        }
+
+        if (rule.roaming != rule.roaming_default) {
+            flags |= (rule.roaming ? Rule.FLAG_ROAMING : 0);
+            mask |= Rule.FLAG_ROAMING;
+        }
+
+        if (rule.lockdown) {
+            flags |= Rule.FLAG_LOCKDOWN;
+            mask |= Rule.FLAG_LOCKDOWN;
+        }
+
+        if (!rule.notify)
+            mask |= Rule.FLAG_NOTIFY;
+
+        if (!rule.notify_security_problem)
+            mask |= Rule.FLAG_NOTIFY_SECURITY_PROBLEM;
+
+        mapRule.put(rule.packageName, new int[]{flags, mask});
 
         rule.updateChanged(context);
         Log.i(TAG, "Updated " + rule);
 
         List<Rule> listModified = new ArrayList<>();
         for (String pkg : rule.related) {
-            for (Rule related : listAll)
+            for (Rule related : listSearch)
                 if (related.packageName.equals(pkg)) {
                     related.wifi_blocked = rule.wifi_blocked;
                     related.other_blocked = rule.other_blocked;
@@ -957,18 +1060,11 @@ public class AdapterRule extends RecyclerView.Adapter<AdapterRule.ViewHolder> im
                 }
         }
 
-        List<Rule> listSearch = (root ? new ArrayList<>(listAll) : listAll);
         listSearch.remove(rule);
         for (Rule modified : listModified)
             listSearch.remove(modified);
         for (Rule modified : listModified)
-            updateRule(modified, false, listSearch);
-
-        if (root) {
-            notifyDataSetChanged();
-            NotificationManagerCompat.from(context).cancel(rule.uid);
-            ServiceSinkhole.reload("rule changed", context, false);
-        }
+            updateRule(modified, listSearch, mapRule);
     }
 
     @Override
@@ -26,11 +26,13 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.preference.PreferenceManager;
 import android.util.Log;
+import android.util.SparseArray;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -39,12 +41,14 @@ import java.io.ObjectOutput;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import at.tugraz.netguard.ACNPacket;
 import at.tugraz.netguard.ACNUtils;
@@ -54,7 +58,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "NetGuard.Database";
 
     private static final String DB_NAME = "Netguard";
-    private static final int DB_VERSION = 24;
+    private static final int DB_VERSION = 27;
+
+    // The traffic log is stored in one table per day, log_<days since epoch>
+    // The view log combines the days, retention drops whole tables
+    private static final long LOG_PARTITION = 24 * 3600 * 1000L;
+    public static final long LOG_RETENTION = 3 * LOG_PARTITION;
 
     private static boolean once = true;
     private static List<LogChangedListener> logChangedListeners = new ArrayList<>();
@@ -67,6 +76,19 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static Handler handler = null;
 
     private static final Map<Integer, Long> mapUidHosts = new HashMap<>();
+    private static boolean allUidHosts = false;
+
+    // Names by address and uid, addresses without a name are cached too
+    // Least recently used addresses are evicted
+    private static final int QNAME_CACHE_SIZE = 1000;
+    private static int qnameGeneration = 0;
+    private static final Map<String, SparseArray<String>> mapQName =
+            new LinkedHashMap<String, SparseArray<String>>(QNAME_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SparseArray<String>> eldest) {
+                    return (size() > QNAME_CACHE_SIZE);
+                }
+            };
 
     private final static int MSG_LOG = 1;
     private final static int MSG_ACCESS = 2;
@@ -74,8 +96,19 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private final static int MSG_KEYWORD = 4;
     private final static int MSG_CONNECTION = 5;
 
+    private Context context;
     private SharedPreferences prefs;
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private volatile int ruleGeneration = 0;
+    private volatile int filterGeneration = 0;
+    private boolean rulesMigrated = false;
+    private long insertLogPartition = -1;
+    private SQLiteStatement insertLogStatement = null;
+    private SQLiteStatement updateAccessStatement = null;
+    private SQLiteStatement insertAccessStatement = null;
+    private SQLiteStatement updateUsageStatement = null;
+    // Reads run concurrently on their own connections, isolated by the write-ahead log
+    // Writes are serialized in arrival order, which also guards the compiled statements
+    private final ReentrantLock writeLock = new ReentrantLock(true);
 
     static {
         hthread = new HandlerThread("DatabaseHelper");
@@ -99,6 +132,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public static void clearCache() {
         synchronized (mapUidHosts) {
             mapUidHosts.clear();
+            allUidHosts = false;
         }
     }
 
@@ -109,6 +143,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     private DatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        this.context = context;
         prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
         if (!once) {
@@ -131,13 +166,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.i(TAG, "Creating database " + DB_NAME + " version " + DB_VERSION);
-        createTableLog(db);
+        createTableLog(db, getLogPartition(new Date().getTime()));
+        createViewLog(db);
         createTableAccess(db);
         createTableDns(db);
         createTableForward(db);
         createTableApp(db);
         createTableKeywords(db);
         createTableConnection(db);
+        createTableRule(db);
+        createTableCidr(db);
     }
 
     @Override
@@ -147,8 +185,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     private void createTableLog(SQLiteDatabase db) {
-        Log.i(TAG, "Creating log table");
-        db.execSQL("CREATE TABLE log (" +
+        createTableLog(db, "log");
+    }
+
+    private void createTableLog(SQLiteDatabase db, long partition) {
+        createTableLog(db, "log_" + partition);
+    }
+
+    private void createTableLog(SQLiteDatabase db, String table) {
+        Log.i(TAG, "Creating log table " + table);
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + table + " (" +
                 " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
                 ", time INTEGER NOT NULL" +
                 ", version INTEGER NULL" +
@@ -165,11 +211,93 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ", connection INTEGER NULL" +
                 ", interactive INTEGER NULL" +
                 ");");
-        db.execSQL("CREATE INDEX idx_log_time ON log(time)");
-        db.execSQL("CREATE INDEX idx_log_dest ON log(daddr)");
-        db.execSQL("CREATE INDEX idx_log_dname ON log(dname)");
-        db.execSQL("CREATE INDEX idx_log_dport ON log(dport)");
-        db.execSQL("CREATE INDEX idx_log_uid ON log(uid)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + table + "_time ON " + table + "(time)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + table + "_dest ON " + table + "(daddr)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + table + "_dname ON " + table + "(dname)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + table + "_dport ON " + table + "(dport)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + table + "_uid ON " + table + "(uid)");
+    }
+
+    // Recreated whenever a partition is added or dropped, in the same transaction
+    // Readers see either the previous or the new set of partitions, never a dropped table
+    // Identifiers are unique over all partitions
+    // Queries on the view are flattened into one query per partition and sorted by merging,
+    // so each partition is read newest first from its time index, without a temporary sort
+    private void createViewLog(SQLiteDatabase db) {
+        StringBuilder sb = new StringBuilder();
+        for (long partition : getLogPartitions(db)) {
+            if (sb.length() > 0)
+                sb.append(" UNION ALL ");
+            sb.append("SELECT ").append(partition).append(" * 4294967296 + ID AS ID");
+            sb.append(", time, version, protocol, flags, saddr, sport, daddr, dport, dname, uid, data, allowed, connection, interactive");
+            sb.append(" FROM log_").append(partition);
+        }
+
+        db.execSQL("DROP VIEW IF EXISTS log");
+        db.execSQL("CREATE VIEW log AS " + sb.toString());
+    }
+
+    private static long getLogPartition(long time) {
+        return time / LOG_PARTITION;
+    }
+
+    // Newest first
+    private static List<Long> getLogPartitions(SQLiteDatabase db) {
+        List<Long> result = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT name FROM sqlite_master" +
+                    " WHERE type = 'table' AND name GLOB 'log_[0-9]*'", new String[]{});
+            while (cursor.moveToNext())
+                result.add(Long.parseLong(cursor.getString(0).substring("log_".length())));
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        Collections.sort(result, Collections.<Long>reverseOrder());
+        return result;
+    }
+
+    // Only the current partition has a compiled insert statement
+    private void dropTableLog(SQLiteDatabase db, long partition) {
+        if (partition == insertLogPartition)
+            closeInsertLog();
+        db.execSQL("DROP TABLE IF EXISTS log_" + partition);
+    }
+
+    // The statement is compiled again for the next record
+    private void closeInsertLog() {
+        if (insertLogStatement != null) {
+            insertLogStatement.close();
+            insertLogStatement = null;
+        }
+        insertLogPartition = -1;
+    }
+
+    private void migrateLog(SQLiteDatabase db) {
+        List<Long> listPartition = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT DISTINCT time / " + LOG_PARTITION + " FROM log", new String[]{});
+            while (cursor.moveToNext())
+                listPartition.add(cursor.getLong(0));
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        String columns = "time, version, protocol, flags, saddr, sport, daddr, dport, dname, uid, data, allowed, connection, interactive";
+        for (long partition : listPartition) {
+            createTableLog(db, partition);
+            db.execSQL("INSERT INTO log_" + partition + " (" + columns + ")" +
+                            " SELECT " + columns + " FROM log WHERE time >= ? AND time < ? ORDER BY time",
+                    new Object[]{partition * LOG_PARTITION, (partition + 1) * LOG_PARTITION});
+        }
+        Log.i(TAG, "Migrated log partitions=" + listPartition.size());
+
+        db.execSQL("DROP TABLE log");
+        createTableLog(db, getLogPartition(new Date().getTime()));
+        createViewLog(db);
     }
 
     private void createTableAccess(SQLiteDatabase db) {
@@ -233,6 +361,58 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE UNIQUE INDEX idx_package ON app(package)");
     }
 
+    private void createTableRule(SQLiteDatabase db) {
+        Log.i(TAG, "Creating rule table");
+        db.execSQL("CREATE TABLE rule (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", package TEXT NOT NULL" +
+                ", flags INTEGER NOT NULL" +
+                ", mask INTEGER NOT NULL" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_rule_package ON rule(package)");
+    }
+
+    private void createTableCidr(SQLiteDatabase db) {
+        Log.i(TAG, "Creating cidr table");
+        db.execSQL("CREATE TABLE cidr (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", uid INTEGER NOT NULL" +
+                ", address TEXT NOT NULL" +
+                ", prefix INTEGER NOT NULL" +
+                ", block INTEGER NOT NULL" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_cidr ON cidr(uid, address, prefix)");
+    }
+
+    private boolean migrateRules(SQLiteDatabase db) {
+        // Application rules used to be stored in a preferences file per flag
+        Map<String, int[]> mapRule = new HashMap<>();
+        for (int i = 0; i < Rule.FLAG_NAMES.length; i++) {
+            Map<String, ?> values = context.getSharedPreferences(Rule.FLAG_NAMES[i], Context.MODE_PRIVATE).getAll();
+            for (String pkg : values.keySet())
+                if (values.get(pkg) instanceof Boolean) {
+                    if (!mapRule.containsKey(pkg))
+                        mapRule.put(pkg, new int[2]);
+                    int[] rule = mapRule.get(pkg);
+                    if ((Boolean) values.get(pkg))
+                        rule[0] |= (1 << i);
+                    rule[1] |= (1 << i);
+                }
+        }
+
+        for (String pkg : mapRule.keySet()) {
+            ContentValues cv = new ContentValues();
+            cv.put("package", pkg);
+            cv.put("flags", mapRule.get(pkg)[0]);
+            cv.put("mask", mapRule.get(pkg)[1]);
+            if (db.insertWithOnConflict("rule", null, cv, SQLiteDatabase.CONFLICT_REPLACE) < 0)
+                Log.e(TAG, "Insert rule failed");
+        }
+
+        Log.i(TAG, "Migrated rules=" + mapRule.size());
+        return (mapRule.size() > 0);
+    }
+
     private void createTableKeywords(SQLiteDatabase db) {
         Log.i(TAG, "Creating keywords table");
         db.execSQL("CREATE TABLE keywords (" +
@@ -277,10 +457,24 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    // Called after the upgrade transaction has been committed
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // Migrated rules are in the database now
+        if (rulesMigrated) {
+            rulesMigrated = false;
+            for (String name : Rule.FLAG_NAMES)
+                context.getSharedPreferences(name, Context.MODE_PRIVATE).edit().clear().apply();
+        }
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.i(TAG, DB_NAME + " upgrading from version " + oldVersion + " to " + newVersion);
 
+        boolean migrated = false;
         db.beginTransaction();
         try {
             if (oldVersion < 2) {
@@ -405,11 +599,25 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     db.execSQL("ALTER TABLE keywords ADD COLUMN is_regex TEXT NOT NULL DEFAULT 0");
                 oldVersion = 24;
             }
+            if (oldVersion < 25) {
+                createTableRule(db);
+                migrated = migrateRules(db);
+                oldVersion = 25;
+            }
+            if (oldVersion < 26) {
+                createTableCidr(db);
+                oldVersion = 26;
+            }
+            if (oldVersion < 27) {
+                migrateLog(db);
+                oldVersion = 27;
+            }
 
             if (oldVersion == DB_VERSION) {
                 db.setVersion(oldVersion);
                 db.setTransactionSuccessful();
                 Log.i(TAG, DB_NAME + " upgraded to " + DB_VERSION);
+                rulesMigrated = migrated;
             } else
                 throw new IllegalArgumentException(DB_NAME + " upgraded to " + oldVersion + " but required " + DB_VERSION);
 
@@ -422,152 +630,172 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // Log
 
-    public void insertLog(Packet packet, String dname, int connection, boolean interactive) {
-        lock.writeLock().lock();
+    // Records of a batch share the connection type and interactive state
+    public void insertLog(List<Packet> listPacket, List<String> listDName, int connection, boolean interactive) {
+        boolean committed = false;
+
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                ContentValues cv = new ContentValues();
-                cv.put("time", packet.time);
-                cv.put("version", packet.version);
-
-                if (packet.protocol < 0)
-                    cv.putNull("protocol");
-                else
-                    cv.put("protocol", packet.protocol);
-
-                cv.put("flags", packet.flags);
-
-                cv.put("saddr", packet.saddr);
-                if (packet.sport < 0)
-                    cv.putNull("sport");
-                else
-                    cv.put("sport", packet.sport);
-
-                cv.put("daddr", packet.daddr);
-                if (packet.dport < 0)
-                    cv.putNull("dport");
-                else
-                    cv.put("dport", packet.dport);
-
-                if (dname == null)
-                    cv.putNull("dname");
-                else
-                    cv.put("dname", dname);
-
-                cv.put("data", packet.data);
-
-                if (packet.uid < 0)
-                    cv.putNull("uid");
-                else
-                    cv.put("uid", packet.uid);
-
-                cv.put("allowed", packet.allowed ? 1 : 0);
-
-                cv.put("connection", connection);
-                cv.put("interactive", interactive ? 1 : 0);
+                for (int i = 0; i < listPacket.size(); i++) {
+                    Packet packet = listPacket.get(i);
+
+                    // The database is never closed, so the statement can be reused until the next partition
+                    long partition = getLogPartition(packet.time);
+                    if (partition != insertLogPartition) {
+                        if (insertLogStatement != null)
+                            insertLogStatement.close();
+                        if (!getLogPartitions(db).contains(partition)) {
+                            createTableLog(db, partition);
+                            createViewLog(db);
+                        }
+                        insertLogStatement = db.compileStatement("INSERT INTO log_" + partition +
+                                " (time, version, protocol, flags, saddr, sport, daddr, dport, dname, data, uid, allowed, connection, interactive)" +
+                                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                        insertLogPartition = partition;
+                    }
 
-                if (db.insert("log", null, cv) == -1)
-                    Log.e(TAG, "Insert log failed");
+                    insertLogStatement.clearBindings();
+                    insertLogStatement.bindLong(1, packet.time);
+                    insertLogStatement.bindLong(2, packet.version);
+                    if (packet.protocol >= 0)
+                        insertLogStatement.bindLong(3, packet.protocol);
+                    bindString(insertLogStatement, 4, packet.flags);
+                    bindString(insertLogStatement, 5, packet.saddr);
+                    if (packet.sport >= 0)
+                        insertLogStatement.bindLong(6, packet.sport);
+                    bindString(insertLogStatement, 7, packet.daddr);
+                    if (packet.dport >= 0)
+                        insertLogStatement.bindLong(8, packet.dport);
+                    bindString(insertLogStatement, 9, listDName.get(i));
+                    bindString(insertLogStatement, 10, packet.data);
+                    if (packet.uid >= 0)
+                        insertLogStatement.bindLong(11, packet.uid);
+                    insertLogStatement.bindLong(12, packet.allowed ? 1 : 0);
+                    insertLogStatement.bindLong(13, connection);
+                    insertLogStatement.bindLong(14, interactive ? 1 : 0);
+
+                    if (insertLogStatement.executeInsert() == -1)
+                        Log.e(TAG, "Insert log failed");
+                }
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
+            committed = true;
         } finally {
-            lock.writeLock().unlock();
+            // A partition created in a rolled back transaction doesn't exist
+            if (!committed)
+                closeInsertLog();
+            writeLock.unlock();
         }
 
         notifyLogChanged();
     }
 
+    // Unbound parameters are null
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value != null)
+            statement.bindString(index, value);
+    }
+
     public void clearLog(int uid) {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                if (uid < 0)
-                    db.delete("log", null, new String[]{});
-                else
-                    db.delete("log", "uid = ?", new String[]{Integer.toString(uid)});
+                // Dropped pages are reused by new partitions, there is no need to vacuum
+                if (uid < 0) {
+                    for (long partition : getLogPartitions(db))
+                        dropTableLog(db, partition);
+                    createTableLog(db, getLogPartition(new Date().getTime()));
+                    createViewLog(db);
+                } else
+                    for (long partition : getLogPartitions(db))
+                        db.delete("log_" + partition, "uid = ?", new String[]{Integer.toString(uid)});
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
-
-            db.execSQL("VACUUM");
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
         notifyLogChanged();
     }
 
     public void cleanupLog(long time) {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                // There an index on time
-                int rows = db.delete("log", "time < ?", new String[]{Long.toString(time)});
+                // Partitions are dropped when all their records are older
+                // The cost doesn't depend on the number of records
+                int partitions = 0;
+                for (long partition : getLogPartitions(db))
+                    if ((partition + 1) * LOG_PARTITION <= time) {
+                        dropTableLog(db, partition);
+                        partitions++;
+                    }
+                if (partitions > 0) {
+                    createTableLog(db, getLogPartition(new Date().getTime()));
+                    createViewLog(db);
+                }
                 Log.i(TAG, "Cleanup log" +
                         " before=" + SimpleDateFormat.getDateTimeInstance().format(new Date(time)) +
-                        " rows=" + rows);
+                        " partitions=" + partitions);
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
     }
 
     public Cursor getLog(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on time
-            // There is no index on protocol/allowed for write performance
-            String query = "SELECT ID AS _id, *";
-            query += " FROM log";
-            query += " WHERE (0 = 1";
-            if (udp)
-                query += " OR protocol = 17";
-            if (tcp)
-                query += " OR protocol = 6";
-            if (other)
-                query += " OR (protocol <> 6 AND protocol <> 17)";
-            query += ") AND (0 = 1";
-            if (allowed)
-                query += " OR allowed = 1";
-            if (blocked)
-                query += " OR allowed = 0";
-            query += ")";
-            query += " ORDER BY time DESC";
-            return db.rawQuery(query, new String[]{});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is an index on time in every partition
+        // There is no index on protocol/allowed for write performance
+        // Partitions older than the retention period are skipped with a single index lookup
+        String query = "SELECT ID AS _id, *";
+        query += " FROM log";
+        query += " WHERE time >= ?";
+        query += " AND (0 = 1";
+        if (udp)
+            query += " OR protocol = 17";
+        if (tcp)
+            query += " OR protocol = 6";
+        if (other)
+            query += " OR (protocol <> 6 AND protocol <> 17)";
+        query += ") AND (0 = 1";
+        if (allowed)
+            query += " OR allowed = 1";
+        if (blocked)
+            query += " OR allowed = 0";
+        query += ")";
+        query += " ORDER BY time DESC";
+        return db.rawQuery(query, new String[]{Long.toString(new Date().getTime() - LOG_RETENTION)});
     }
 
     public Cursor searchLog(String find) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on daddr, dname, dport and uid
-            String query = "SELECT ID AS _id, *";
-            query += " FROM log";
-            query += " WHERE daddr LIKE ? OR dname LIKE ? OR dport = ? OR uid = ?";
-            query += " ORDER BY time DESC";
-            return db.rawQuery(query, new String[]{"%" + find + "%", "%" + find + "%", find, find});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is an index on time in every partition
+        String query = "SELECT ID AS _id, *";
+        query += " FROM log";
+        query += " WHERE time >= ?";
+        query += " AND (daddr LIKE ? OR dname LIKE ? OR dport = ? OR uid = ?)";
+        query += " ORDER BY time DESC";
+        return db.rawQuery(query, new String[]{
+                Long.toString(new Date().getTime() - LOG_RETENTION),
+                "%" + find + "%", "%" + find + "%", find, find});
     }
 
     // Access
@@ -575,7 +803,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public boolean updateAccess(Packet packet, String dname, int block) {
         int rows;
 
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -614,65 +842,122 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
+        if (rows == 0)
+            invalidateQName(packet.uid);
+
+        if (block >= 0)
+            filterGeneration++;
         notifyAccessChanged();
         return (rows == 0);
     }
 
-    public void updateUsage(Usage usage, String dname) {
-        lock.writeLock().lock();
+    // Access of the application log, merged by access key
+    // The address is the resolved name if there is one
+    // Returns the access which was new
+    public List<Packet> updateAccess(List<Packet> listPacket) {
+        List<Packet> listCreated = new ArrayList<>();
+
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
                 // There is a segmented index on uid, version, protocol, daddr and dport
-                String selection = "uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?";
-                String[] selectionArgs = new String[]{
-                        Integer.toString(usage.Uid),
-                        Integer.toString(usage.Version),
-                        Integer.toString(usage.Protocol),
-                        dname == null ? usage.DAddr : dname,
-                        Integer.toString(usage.DPort)
-                };
-
-                Cursor cursor = db.query("access", new String[]{"sent", "received", "connections"}, selection, selectionArgs, null, null, null);
-                long sent = 0;
-                long received = 0;
-                int connections = 0;
-                int colSent = cursor.getColumnIndex("sent");
-                int colReceived = cursor.getColumnIndex("received");
-                int colConnections = cursor.getColumnIndex("connections");
-                if (cursor.moveToNext()) {
-                    sent = cursor.isNull(colSent) ? 0 : cursor.getLong(colSent);
-                    received = cursor.isNull(colReceived) ? 0 : cursor.getLong(colReceived);
-                    connections = cursor.isNull(colConnections) ? 0 : cursor.getInt(colConnections);
+                if (updateAccessStatement == null)
+                    updateAccessStatement = db.compileStatement("UPDATE access SET time = ?, allowed = ?" +
+                            " WHERE uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?");
+                if (insertAccessStatement == null)
+                    insertAccessStatement = db.compileStatement("INSERT INTO access" +
+                            " (uid, version, protocol, daddr, dport, time, allowed, block)" +
+                            " VALUES (?, ?, ?, ?, ?, ?, ?, -1)");
+
+                for (Packet packet : listPacket) {
+                    updateAccessStatement.bindLong(1, packet.time);
+                    updateAccessStatement.bindLong(2, packet.allowed ? 1 : 0);
+                    updateAccessStatement.bindLong(3, packet.uid);
+                    updateAccessStatement.bindLong(4, packet.version);
+                    updateAccessStatement.bindLong(5, packet.protocol);
+                    updateAccessStatement.bindString(6, packet.daddr);
+                    updateAccessStatement.bindLong(7, packet.dport);
+                    int rows = updateAccessStatement.executeUpdateDelete();
+
+                    if (rows == 0) {
+                        insertAccessStatement.bindLong(1, packet.uid);
+                        insertAccessStatement.bindLong(2, packet.version);
+                        insertAccessStatement.bindLong(3, packet.protocol);
+                        insertAccessStatement.bindString(4, packet.daddr);
+                        insertAccessStatement.bindLong(5, packet.dport);
+                        insertAccessStatement.bindLong(6, packet.time);
+                        insertAccessStatement.bindLong(7, packet.allowed ? 1 : 0);
+                        if (insertAccessStatement.executeInsert() == -1)
+                            Log.e(TAG, "Insert access failed");
+                        else
+                            listCreated.add(packet);
+                    } else if (rows != 1)
+                        Log.e(TAG, "Update access failed rows=" + rows);
                 }
-                cursor.close();
 
-                ContentValues cv = new ContentValues();
-                cv.put("sent", sent + usage.Sent);
-                cv.put("received", received + usage.Received);
-                cv.put("connections", connections + 1);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            writeLock.unlock();
+        }
 
-                int rows = db.update("access", cv, selection, selectionArgs);
-                if (rows != 1)
-                    Log.e(TAG, "Update usage failed rows=" + rows);
+        for (Packet packet : listCreated)
+            invalidateQName(packet.uid);
+
+        notifyAccessChanged();
+        return listCreated;
+    }
+
+    // Usage merged by access key
+    // The address is the resolved name if there is one
+    public void updateUsage(List<Usage> listUsage) {
+        writeLock.lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                // There is a segmented index on uid, version, protocol, daddr and dport
+                if (updateUsageStatement == null)
+                    updateUsageStatement = db.compileStatement("UPDATE access SET" +
+                            " sent = IFNULL(sent, 0) + ?" +
+                            ", received = IFNULL(received, 0) + ?" +
+                            ", connections = IFNULL(connections, 0) + ?" +
+                            " WHERE uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?");
+
+                for (Usage usage : listUsage) {
+                    updateUsageStatement.bindLong(1, usage.Sent);
+                    updateUsageStatement.bindLong(2, usage.Received);
+                    updateUsageStatement.bindLong(3, usage.Connections);
+                    updateUsageStatement.bindLong(4, usage.Uid);
+                    updateUsageStatement.bindLong(5, usage.Version);
+                    updateUsageStatement.bindLong(6, usage.Protocol);
+                    updateUsageStatement.bindString(7, usage.DAddr);
+                    updateUsageStatement.bindLong(8, usage.DPort);
+                    int rows = updateUsageStatement.executeUpdateDelete();
+                    if (rows != 1)
+                        Log.e(TAG, "Update usage failed rows=" + rows);
+                }
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
         notifyAccessChanged();
     }
 
     public void setAccess(long id, int block) {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -689,14 +974,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
+        filterGeneration++;
         notifyAccessChanged();
     }
 
     public void clearAccess() {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -708,14 +994,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
+        clearQName();
+        filterGeneration++;
         notifyAccessChanged();
     }
 
     public void clearAccess(int uid, boolean keeprules) {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -724,22 +1012,26 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 // There is an index on block
                 if (keeprules)
                     db.delete("access", "uid = ? AND block < 0", new String[]{Integer.toString(uid)});
-                else
+                else {
                     db.delete("access", "uid = ?", new String[]{Integer.toString(uid)});
+                    db.delete("cidr", "uid = ?", new String[]{Integer.toString(uid)});
+                }
 
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
+        invalidateQName(uid);
+        filterGeneration++;
         notifyAccessChanged();
     }
 
     public void resetUsage(int uid) {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             // There is a segmented index on uid
             SQLiteDatabase db = this.getWritableDatabase();
@@ -758,61 +1050,46 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
         notifyAccessChanged();
     }
 
     public Cursor getAccess(int uid) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid
-            // There is no index on time for write performance
-            String query = "SELECT a.ID AS _id, a.*";
-            query += ", (SELECT COUNT(DISTINCT d.qname) FROM dns d WHERE d.resource IN (SELECT d1.resource FROM dns d1 WHERE d1.qname = a.daddr)) count";
-            query += " FROM access a";
-            query += " WHERE a.uid = ?";
-            query += " ORDER BY a.time DESC";
-            query += " LIMIT 50";
-            return db.rawQuery(query, new String[]{Integer.toString(uid)});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is no index on time for write performance
+        String query = "SELECT a.ID AS _id, a.*";
+        query += ", (SELECT COUNT(DISTINCT d.qname) FROM dns d WHERE d.resource IN (SELECT d1.resource FROM dns d1 WHERE d1.qname = a.daddr)) count";
+        query += " FROM access a";
+        query += " WHERE a.uid = ?";
+        query += " ORDER BY a.time DESC";
+        query += " LIMIT 50";
+        return db.rawQuery(query, new String[]{Integer.toString(uid)});
     }
 
     public Cursor getAccess() {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid
-            // There is an index on block
-            return db.query("access", null, "block >= 0", null, null, null, "uid");
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is an index on block
+        return db.query("access", null, "block >= 0", null, null, null, "uid");
     }
 
     public Cursor getAccessUnset(int uid, int limit, long since) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid, block and daddr
-            // There is no index on allowed and time for write performance
-            String query = "SELECT MAX(time) AS time, daddr, allowed";
-            query += " FROM access";
-            query += " WHERE uid = ?";
-            query += " AND block < 0";
-            query += " AND time >= ?";
-            query += " GROUP BY daddr, allowed";
-            query += " ORDER BY time DESC";
-            if (limit > 0)
-                query += " LIMIT " + limit;
-            return db.rawQuery(query, new String[]{Integer.toString(uid), Long.toString(since)});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid, block and daddr
+        // There is no index on allowed and time for write performance
+        String query = "SELECT MAX(time) AS time, daddr, allowed";
+        query += " FROM access";
+        query += " WHERE uid = ?";
+        query += " AND block < 0";
+        query += " AND time >= ?";
+        query += " GROUP BY daddr, allowed";
+        query += " ORDER BY time DESC";
+        if (limit > 0)
+            query += " LIMIT " + limit;
+        return db.rawQuery(query, new String[]{Integer.toString(uid), Long.toString(since)});
     }
 
     public long getHostCount(int uid, boolean usecache) {
@@ -820,27 +1097,52 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             synchronized (mapUidHosts) {
                 if (mapUidHosts.containsKey(uid))
                     return mapUidHosts.get(uid);
+                else if (allUidHosts)
+                    return 0;
             }
 
-        lock.readLock().lock();
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is an index on block
+        long hosts = db.compileStatement("SELECT COUNT(*) FROM access WHERE block >= 0 AND uid =" + uid).simpleQueryForLong();
+        synchronized (mapUidHosts) {
+            mapUidHosts.put(uid, hosts);
+        }
+        return hosts;
+    }
+
+    // Uids without hosts are missing
+    public Map<Integer, Long> getHostCounts() {
+        synchronized (mapUidHosts) {
+            if (allUidHosts)
+                return new HashMap<>(mapUidHosts);
+        }
+
+        Map<Integer, Long> hosts = new HashMap<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is an index on block
+        Cursor cursor = db.rawQuery("SELECT uid, COUNT(*) FROM access WHERE block >= 0 GROUP BY uid", null);
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid
-            // There is an index on block
-            long hosts = db.compileStatement("SELECT COUNT(*) FROM access WHERE block >= 0 AND uid =" + uid).simpleQueryForLong();
-            synchronized (mapUidHosts) {
-                mapUidHosts.put(uid, hosts);
-            }
-            return hosts;
+            while (cursor.moveToNext())
+                hosts.put(cursor.getInt(0), cursor.getLong(1));
         } finally {
-            lock.readLock().unlock();
+            cursor.close();
+        }
+
+        synchronized (mapUidHosts) {
+            mapUidHosts.clear();
+            mapUidHosts.putAll(hosts);
+            allUidHosts = true;
         }
+        return hosts;
     }
 
     // DNS
 
     public boolean insertDns(ResourceRecord rr) {
-        lock.writeLock().lock();
+        int rows;
+
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -855,7 +1157,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 cv.put("time", rr.Time);
                 cv.put("ttl", ttl * 1000L);
 
-                int rows = db.update("dns", cv, "qname = ? AND aname = ? AND resource = ?",
+                rows = db.update("dns", cv, "qname = ? AND aname = ? AND resource = ?",
                         new String[]{rr.QName, rr.AName, rr.Resource});
 
                 if (rows == 0) {
@@ -869,18 +1171,21 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     Log.e(TAG, "Update dns failed rows=" + rows);
 
                 db.setTransactionSuccessful();
-
-                return (rows == 0);
             } finally {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
+
+        if (rows == 0)
+            invalidateQName(rr.Resource);
+
+        return (rows == 0);
     }
 
     public void cleanupDns() {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -895,12 +1200,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
+
+        filterGeneration++;
+        clearQName();
     }
 
     public void clearDns() {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -912,12 +1220,23 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
+
+        filterGeneration++;
+        clearQName();
     }
 
     public String getQName(int uid, String ip) {
-        lock.readLock().lock();
+        int generation;
+        synchronized (mapQName) {
+            SparseArray<String> uids = mapQName.get(ip);
+            if (uids != null && uids.indexOfKey(uid) >= 0)
+                return uids.get(uid);
+            generation = qnameGeneration;
+        }
+
+        String qname;
         try {
             SQLiteDatabase db = this.getReadableDatabase();
             // There is a segmented index on resource
@@ -925,77 +1244,204 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             String query = "SELECT d.qname";
             query += " FROM dns AS d";
             query += " LEFT JOIN access AS a";
-            query += "   ON a.daddr = d.qname AND a.uid = " + uid;
-            query += " WHERE d.resource = '" + ip.replace("'", "''") + "'";
-            query += " ORDER BY CASE a.daddr WHEN NULL THEN 1 ELSE 0 END, d.qname";
+            query += "   ON a.daddr = d.qname AND a.uid = ?";
+            query += " WHERE d.resource = ?";
+            query += " ORDER BY CASE WHEN a.daddr IS NULL THEN 1 ELSE 0 END, d.qname";
             query += " LIMIT 1";
-            return db.compileStatement(query).simpleQueryForString();
+            SQLiteStatement statement = db.compileStatement(query);
+            try {
+                statement.bindLong(1, uid);
+                statement.bindString(2, ip);
+                qname = statement.simpleQueryForString();
+            } finally {
+                statement.close();
+            }
         } catch (SQLiteDoneException ignored) {
             // Not found
-            return null;
-        } finally {
-            lock.readLock().unlock();
+            qname = null;
+        }
+
+        // Names changed while querying are not cached
+        synchronized (mapQName) {
+            if (generation == qnameGeneration) {
+                SparseArray<String> uids = mapQName.get(ip);
+                if (uids == null) {
+                    uids = new SparseArray<>();
+                    mapQName.put(ip, uids);
+                }
+                uids.put(uid, qname);
+            }
+        }
+
+        return qname;
+    }
+
+    // Called after the change has been committed
+    // A lookup can still see the previous names before that, because reads aren't locked
+    private static void invalidateQName(String ip) {
+        synchronized (mapQName) {
+            qnameGeneration++;
+            mapQName.remove(ip);
+        }
+    }
+
+    private static void invalidateQName(int uid) {
+        synchronized (mapQName) {
+            qnameGeneration++;
+            for (SparseArray<String> uids : mapQName.values())
+                uids.delete(uid);
+        }
+    }
+
+    private static void clearQName() {
+        synchronized (mapQName) {
+            qnameGeneration++;
+            mapQName.clear();
         }
     }
 
     public Cursor getAlternateQNames(String qname) {
-        lock.readLock().lock();
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT DISTINCT d2.qname";
+        query += " FROM dns d1";
+        query += " JOIN dns d2";
+        query += "   ON d2.resource = d1.resource AND d2.id <> d1.id";
+        query += " WHERE d1.qname = ?";
+        query += " ORDER BY d2.qname";
+        return db.rawQuery(query, new String[]{qname});
+    }
+
+    public Cursor getDns() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is an index on resource
+        // There is a segmented index on qname
+        String query = "SELECT ID AS _id, *";
+        query += " FROM dns";
+        query += " ORDER BY resource, qname";
+        return db.rawQuery(query, new String[]{});
+    }
+
+    public Cursor getAccessDns(String dname) {
+        long now = new Date().getTime();
+        SQLiteDatabase db = this.getReadableDatabase();
+
+        // There is a segmented index on dns.qname
+        // There is an index on access.daddr and access.block
+        String query = "SELECT a.uid, a.version, a.protocol, a.daddr, d.resource, a.dport, a.block, d.time, d.ttl";
+        query += " FROM access AS a";
+        query += " LEFT JOIN dns AS d";
+        query += "   ON d.qname = a.daddr";
+        query += " WHERE a.block >= 0";
+        query += " AND d.time + d.ttl >= " + now;
+        if (dname != null)
+            query += " AND a.daddr = ?";
+
+        return db.rawQuery(query, dname == null ? new String[]{} : new String[]{dname});
+    }
+
+    public Cursor getAccessDomains() {
+        SQLiteDatabase db = this.getReadableDatabase();
+
+        // There is an index on access.daddr and access.block
+        String query = "SELECT uid, version, protocol, daddr, dport, block";
+        query += " FROM access";
+        query += " WHERE block >= 0";
+
+        return db.rawQuery(query, new String[]{});
+    }
+
+    // Address ranges
+
+    public void addCidr(int uid, String address, int prefix, boolean block) {
+        writeLock.lock();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            String query = "SELECT DISTINCT d2.qname";
-            query += " FROM dns d1";
-            query += " JOIN dns d2";
-            query += "   ON d2.resource = d1.resource AND d2.id <> d1.id";
-            query += " WHERE d1.qname = ?";
-            query += " ORDER BY d2.qname";
-            return db.rawQuery(query, new String[]{qname});
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                ContentValues cv = new ContentValues();
+                cv.put("uid", uid);
+                cv.put("address", address);
+                cv.put("prefix", prefix);
+                cv.put("block", block ? 1 : 0);
+
+                if (db.insertWithOnConflict("cidr", null, cv, SQLiteDatabase.CONFLICT_REPLACE) < 0)
+                    Log.e(TAG, "Insert cidr failed");
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
         } finally {
-            lock.readLock().unlock();
+            writeLock.unlock();
         }
+
+        filterGeneration++;
+        notifyAccessChanged();
     }
 
-    public Cursor getDns() {
-        lock.readLock().lock();
+    public void deleteCidr(int uid, String address, int prefix) {
+        writeLock.lock();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on resource
-            // There is a segmented index on qname
-            String query = "SELECT ID AS _id, *";
-            query += " FROM dns";
-            query += " ORDER BY resource, qname";
-            return db.rawQuery(query, new String[]{});
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                db.delete("cidr", "uid = ? AND address = ? AND prefix = ?",
+                        new String[]{Integer.toString(uid), address, Integer.toString(prefix)});
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
         } finally {
-            lock.readLock().unlock();
+            writeLock.unlock();
         }
+
+        filterGeneration++;
+        notifyAccessChanged();
     }
 
-    public Cursor getAccessDns(String dname) {
-        long now = new Date().getTime();
-        lock.readLock().lock();
+    public void clearCidr() {
+        writeLock.lock();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                db.delete("cidr", null, null);
 
-            // There is a segmented index on dns.qname
-            // There is an index on access.daddr and access.block
-            String query = "SELECT a.uid, a.version, a.protocol, a.daddr, d.resource, a.dport, a.block, d.time, d.ttl";
-            query += " FROM access AS a";
-            query += " LEFT JOIN dns AS d";
-            query += "   ON d.qname = a.daddr";
-            query += " WHERE a.block >= 0";
-            query += " AND d.time + d.ttl >= " + now;
-            if (dname != null)
-                query += " AND a.daddr = ?";
-
-            return db.rawQuery(query, dname == null ? new String[]{} : new String[]{dname});
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
         } finally {
-            lock.readLock().unlock();
+            writeLock.unlock();
         }
+
+        filterGeneration++;
+        notifyAccessChanged();
+    }
+
+    public Cursor getCidr() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is an index on uid
+        String query = "SELECT ID AS _id, *";
+        query += " FROM cidr";
+        query += " ORDER BY uid";
+        return db.rawQuery(query, new String[]{});
+    }
+
+    public Cursor getCidr(int uid) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is an index on uid
+        String query = "SELECT ID AS _id, *";
+        query += " FROM cidr";
+        query += " WHERE uid = ?";
+        return db.rawQuery(query, new String[]{Integer.toString(uid)});
     }
 
     // Forward
 
     public void addForward(int protocol, int dport, String raddr, int rport, int ruid) {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1015,14 +1461,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
+        filterGeneration++;
         notifyForwardChanged();
     }
 
     public void deleteForward() {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1034,14 +1481,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
+        filterGeneration++;
         notifyForwardChanged();
     }
 
     public void deleteForward(int protocol, int dport) {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1054,27 +1502,23 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
+        filterGeneration++;
         notifyForwardChanged();
     }
 
     public Cursor getForwarding() {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            String query = "SELECT ID AS _id, *";
-            query += " FROM forward";
-            query += " ORDER BY dport";
-            return db.rawQuery(query, new String[]{});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT ID AS _id, *";
+        query += " FROM forward";
+        query += " ORDER BY dport";
+        return db.rawQuery(query, new String[]{});
     }
 
     public void addApp(String packageName, String label, boolean system, boolean internet, boolean enabled) {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1097,40 +1541,177 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
     }
 
     public Cursor getApp(String packageName) {
-        lock.readLock().lock();
+        SQLiteDatabase db = this.getReadableDatabase();
+
+        // There is an index on package
+        String query = "SELECT * FROM app WHERE package = ?";
+
+        return db.rawQuery(query, new String[]{packageName});
+    }
+
+    public void clearApps() {
+        writeLock.lock();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                db.delete("app", null, null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Rule
 
-            // There is an index on package
-            String query = "SELECT * FROM app WHERE package = ?";
+    public Cursor getRules() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return db.query("rule", new String[]{"package", "flags", "mask"}, null, null, null, null, null);
+    }
+
+    // Returns the mask in the high and the flags in the low 32 bits
+    public long getRule(String packageName) {
+        SQLiteDatabase db = this.getReadableDatabase();
 
-            return db.rawQuery(query, new String[]{packageName});
+        // There is an index on package
+        Cursor cursor = db.query("rule", new String[]{"flags", "mask"},
+                "package = ?", new String[]{packageName}, null, null, null);
+        try {
+            if (cursor.moveToNext())
+                return ((long) cursor.getInt(1) << 32) | (cursor.getInt(0) & 0xFFFFFFFFL);
+            else
+                return 0;
         } finally {
-            lock.readLock().unlock();
+            cursor.close();
         }
     }
 
-    public void clearApps() {
-        lock.writeLock().lock();
+    public void setRule(String packageName, int flags, int mask) {
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                db.delete("app", null, null);
+                setRule(db, packageName, flags, mask);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            ruleGeneration++;
+            writeLock.unlock();
+        }
+    }
+
+    public void setRuleFlag(String packageName, int flag, Boolean value) {
+        writeLock.lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                int flags = 0;
+                int mask = 0;
+                Cursor cursor = db.query("rule", new String[]{"flags", "mask"},
+                        "package = ?", new String[]{packageName}, null, null, null);
+                if (cursor.moveToNext()) {
+                    flags = cursor.getInt(0);
+                    mask = cursor.getInt(1);
+                }
+                cursor.close();
+
+                flags &= ~flag;
+                mask &= ~flag;
+                if (value != null) {
+                    if (value)
+                        flags |= flag;
+                    mask |= flag;
+                }
+
+                setRule(db, packageName, flags, mask);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            ruleGeneration++;
+            writeLock.unlock();
+        }
+    }
+
+    private void setRule(SQLiteDatabase db, String packageName, int flags, int mask) {
+        // Rows only exist for packages with settings other than the defaults
+        if (mask == 0)
+            db.delete("rule", "package = ?", new String[]{packageName});
+        else {
+            ContentValues cv = new ContentValues();
+            cv.put("package", packageName);
+            cv.put("flags", flags & mask);
+            cv.put("mask", mask);
+            if (db.insertWithOnConflict("rule", null, cv, SQLiteDatabase.CONFLICT_REPLACE) < 0)
+                Log.e(TAG, "Insert rule failed");
+        }
+    }
+
+    public void setRules(Map<String, int[]> mapRule) {
+        writeLock.lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                db.delete("rule", null, null);
+                for (String pkg : mapRule.keySet())
+                    setRule(db, pkg, mapRule.get(pkg)[0], mapRule.get(pkg)[1]);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            ruleGeneration++;
+            writeLock.unlock();
+        }
+    }
+
+    public void updateRules(Map<String, int[]> mapRule) {
+        writeLock.lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                for (String pkg : mapRule.keySet())
+                    setRule(db, pkg, mapRule.get(pkg)[0], mapRule.get(pkg)[1]);
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            ruleGeneration++;
+            writeLock.unlock();
         }
     }
 
+    public void clearRule(String packageName) {
+        setRule(packageName, 0, 0);
+    }
+
+    // Incremented on every rule change
+    public int getRuleGeneration() {
+        return ruleGeneration;
+    }
+
+    // Changes whenever access rules, address ranges, forwarding or resolved addresses could have changed
+    // Recording traffic and usage doesn't change it
+    public int getFilterGeneration() {
+        return filterGeneration;
+    }
+
     public void addLogChangedListener(LogChangedListener listener) {
         logChangedListeners.add(listener);
     }
@@ -1255,21 +1836,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public Cursor getKeywords(int uid) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            String query = "SELECT ID AS _id, *";
-            query += " FROM keywords";
-            query += " WHERE uid = ?";
-            query += " ORDER BY _id";
-            return db.rawQuery(query, new String[]{Integer.toString(uid)});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        String query = "SELECT ID AS _id, *";
+        query += " FROM keywords";
+        query += " WHERE uid = ?";
+        query += " ORDER BY _id";
+        return db.rawQuery(query, new String[]{Integer.toString(uid)});
     }
 
     public void insertKeyword(int uid, String keyword, boolean isRegex) {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1289,14 +1865,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
         notifyKeywordChanged(uid);
     }
 
     public void deleteKeyword(int uid, String keyword) {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1309,14 +1885,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
         notifyKeywordChanged(uid);
     }
 
     public void deleteKeywordFromConnection(int uid, String keyword) {
-        lock.writeLock().lock();
+        writeLock.lock();
         int rows;
         try {
             SQLiteDatabase db = this.getWritableDatabase();
@@ -1365,7 +1941,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
         notifyConnectionChanged();
@@ -1374,7 +1950,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public boolean updateConnection(ACNPacket packet, String dname, String cipherSuiteName) {
         int rows;
 
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase(); // read + writable
             HashSet<String> keywords = new HashSet<String>();
@@ -1440,7 +2016,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
         notifyConnectionChanged();
@@ -1448,7 +2024,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public void clearConnection(int uid) {
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1460,34 +2036,29 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
         notifyConnectionChanged();
     }
 
     public Cursor getConnection(int uid) {
-        lock.readLock().lock();
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on uid
-            // There is no index on time for write performance
-            String query = "SELECT ID AS _id, *";
-            query += " FROM connection";
-            query += " WHERE uid = ?";
-            query += " ORDER BY time DESC";
-            query += " LIMIT 50";
-            return db.rawQuery(query, new String[]{Integer.toString(uid)});
-        } finally {
-            lock.readLock().unlock();
-        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // There is a segmented index on uid
+        // There is no index on time for write performance
+        String query = "SELECT ID AS _id, *";
+        query += " FROM connection";
+        query += " WHERE uid = ?";
+        query += " ORDER BY time DESC";
+        query += " LIMIT 50";
+        return db.rawQuery(query, new String[]{Integer.toString(uid)});
     }
 
     public void resetKeywords(int uid) {
         Log.i(TAG,"Resetting all keyword occurrences for uid = " + uid);
         int rows;
 
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1507,7 +2078,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
         notifyAccessChanged();
@@ -1516,7 +2087,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public void updateKeyword(int uid, String keyword, boolean occurred) {
         int rows;
 
-        lock.writeLock().lock();
+        writeLock.lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
@@ -1538,7 +2109,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
         } finally {
-            lock.writeLock().unlock();
+            writeLock.unlock();
         }
 
         notifyAccessChanged();
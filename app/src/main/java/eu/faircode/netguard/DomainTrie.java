@@ -0,0 +1,89 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Domain suffixes stored by reversed labels, so ads.example.com is found as com > example > ads
+// A lookup takes a step per label of the name, whatever the number of matching subdomains
+// A suffix matches the domain itself and all of its subdomains
+public class DomainTrie<T> {
+    private Node<T> root = new Node<>();
+
+    public void add(String suffix, T value) {
+        Node<T> node = root;
+        String name = suffix.toLowerCase(Locale.ROOT);
+        int end = name.length();
+        while (end > 0) {
+            int dot = name.lastIndexOf('.', end - 1);
+            if (dot + 1 < end) {
+                String label = name.substring(dot + 1, end);
+                Node<T> child = node.children.get(label);
+                if (child == null) {
+                    child = new Node<>();
+                    node.children.put(label, child);
+                }
+                node = child;
+            }
+            end = dot;
+        }
+        if (node != root)
+            node.values.add(value);
+    }
+
+    public boolean isEmpty() {
+        return root.children.isEmpty();
+    }
+
+    public void clear() {
+        root = new Node<>();
+    }
+
+    // Values of all matching suffixes, the longest suffix first
+    public List<T> match(String name) {
+        if (root.children.isEmpty())
+            return Collections.emptyList();
+
+        List<T> result = new ArrayList<>();
+        Node<T> node = root;
+        String lname = name.toLowerCase(Locale.ROOT);
+        int end = lname.length();
+        while (end > 0 && node != null) {
+            int dot = lname.lastIndexOf('.', end - 1);
+            if (dot + 1 < end) {
+                node = node.children.get(lname.substring(dot + 1, end));
+                if (node != null)
+                    result.addAll(0, node.values);
+            }
+            end = dot;
+        }
+        return result;
+    }
+
+    private static class Node<T> {
+        private final Map<String, Node<T>> children = new HashMap<>();
+        private final List<T> values = new ArrayList<>(1);
+    }
+}
@@ -22,80 +22,159 @@ package eu.faircode.netguard;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 public class IPUtil {
     private static final String TAG = "NetGuard.IPUtil";
 
     public static List<CIDR> toCIDR(String start, String end) throws UnknownHostException {
-        return toCIDR(InetAddress.getByName(start), InetAddress.getByName(end));
+        return toCIDR(InetAddress.getByName(start), InetAddress.getByName(end), new ArrayList<CIDR>());
     }
 
-    public static List<CIDR> toCIDR(InetAddress start, InetAddress end) throws UnknownHostException {
-        List<CIDR> listResult = new ArrayList<>();
+    public static List<CIDR> toCIDR(String start, String end, List<CIDR> listExclude) throws UnknownHostException {
+        return toCIDR(InetAddress.getByName(start), InetAddress.getByName(end), listExclude);
+    }
 
-        Log.i(TAG, "toCIDR(" + start.getHostAddress() + "," + end.getHostAddress() + ")");
-
-        long from = inet2long(start);
-        long to = inet2long(end);
-        while (to >= from) {
-            byte prefix = 32;
-            while (prefix > 0) {
-                long mask = prefix2mask(prefix - 1);
-                if ((from & mask) != from)
-                    break;
-                prefix--;
+    // Minimal list of prefixes covering start..end except the excluded prefixes
+    // Addresses are handled as unsigned 32 or 128 bit numbers, excluded prefixes of the other family are ignored
+    public static List<CIDR> toCIDR(InetAddress start, InetAddress end, List<CIDR> listExclude) throws UnknownHostException {
+        int bytes = start.getAddress().length;
+        if (end.getAddress().length != bytes)
+            throw new UnknownHostException("Address family mismatch " + start + "..." + end);
+
+        // Merge overlapping and adjacent excluded ranges
+        List<BigInteger[]> listRange = new ArrayList<>();
+        for (CIDR exclude : listExclude)
+            if (exclude.address.getAddress().length == bytes)
+                listRange.add(new BigInteger[]{inet2big(exclude.getStart()), inet2big(exclude.getEnd())});
+        Collections.sort(listRange, new Comparator<BigInteger[]>() {
+            @Override
+            public int compare(BigInteger[] range1, BigInteger[] range2) {
+                return range1[0].compareTo(range2[0]);
             }
+        });
 
-            byte max = (byte) (32 - Math.floor(Math.log(to - from + 1) / Math.log(2)));
-            if (prefix < max)
-                prefix = max;
+        // Cover the gaps between the excluded ranges
+        List<CIDR> listResult = new ArrayList<>();
+        BigInteger from = inet2big(start);
+        BigInteger to = inet2big(end);
+        for (BigInteger[] range : listRange) {
+            if (range[0].compareTo(to) > 0)
+                break;
+            if (range[0].compareTo(from) > 0)
+                addCIDR(listResult, from, range[0].subtract(BigInteger.ONE), bytes);
+            if (range[1].compareTo(from) >= 0)
+                from = range[1].add(BigInteger.ONE);
+        }
+        addCIDR(listResult, from, to, bytes);
 
-            listResult.add(new CIDR(long2inet(from), prefix));
+        Log.i(TAG, "toCIDR(" + start.getHostAddress() + "," + end.getHostAddress() + ")" +
+                " excluded=" + listRange.size() + " prefixes=" + listResult.size());
+
+        return listResult;
+    }
 
-            from += Math.pow(2, (32 - prefix));
+    // Largest aligned blocks first, which is the minimal number of prefixes for a range
+    private static void addCIDR(List<CIDR> listResult, BigInteger from, BigInteger to, int bytes) throws UnknownHostException {
+        int bits = bytes * 8;
+        while (from.compareTo(to) <= 0) {
+            int align = (from.signum() == 0 ? bits : from.getLowestSetBit());
+            int fit = to.subtract(from).add(BigInteger.ONE).bitLength() - 1;
+            int size = Math.min(align, fit);
+            listResult.add(new CIDR(big2inet(from, bytes), bits - size));
+            from = from.add(BigInteger.ONE.shiftLeft(size));
         }
+    }
 
-        for (CIDR cidr : listResult)
-            Log.i(TAG, cidr.toString());
+    private static BigInteger inet2big(InetAddress addr) {
+        return new BigInteger(1, addr.getAddress());
+    }
 
-        return listResult;
+    private static InetAddress big2inet(BigInteger addr, int bytes) throws UnknownHostException {
+        byte[] b = new byte[bytes];
+        byte[] a = addr.toByteArray();
+        for (int i = 1; i <= bytes && i <= a.length; i++)
+            b[bytes - i] = a[a.length - i];
+        return InetAddress.getByAddress(b);
     }
 
-    private static long prefix2mask(int bits) {
-        return (0xFFFFFFFF00000000L >> bits) & 0xFFFFFFFFL;
+    // Numeric addresses as two 64 bit halves, IPv4 in the low half
+    // The address is assumed to be valid, like the output of inet_ntop
+    public static long addr2high(String addr) {
+        return addr2long(addr, true);
     }
 
-    private static long inet2long(InetAddress addr) {
-        long result = 0;
-        if (addr != null)
-            for (byte b : addr.getAddress())
-                result = result << 8 | (b & 0xFF);
-        return result;
+    public static long addr2low(String addr) {
+        return addr2long(addr, false);
     }
 
-    private static InetAddress long2inet(long addr) {
-        try {
-            byte[] b = new byte[4];
-            for (int i = b.length - 1; i >= 0; i--) {
-                b[i] = (byte) (addr & 0xFF);
-                addr = addr >> 8;
-            }
-            return InetAddress.getByAddress(b);
-        } catch (UnknownHostException ignore) {
-            return null;
+    private static long addr2long(String addr, boolean high) {
+        int len = addr.length();
+        int colon = addr.lastIndexOf(':');
+        if (colon < 0)
+            return (high ? 0 : dotted2long(addr, 0, len));
+
+        // An embedded IPv4 address takes two groups
+        int end = len;
+        long v4 = -1;
+        if (addr.indexOf('.', colon) > 0) {
+            v4 = dotted2long(addr, colon + 1, len);
+            end = colon + 1;
         }
+
+        int groups = (v4 < 0 ? 0 : 2);
+        for (int i = 0; i < end; i++)
+            if (addr.charAt(i) != ':' && (i == 0 || addr.charAt(i - 1) == ':'))
+                groups++;
+
+        int gap = addr.indexOf("::");
+        long result = 0;
+        int k = 0;
+        int g = -1;
+        for (int i = 0; i < end; i++) {
+            char c = addr.charAt(i);
+            if (c == ':') {
+                if (g >= 0) {
+                    result = group2long(result, k++, g, high);
+                    g = -1;
+                }
+                if (i == gap)
+                    k += 8 - groups;
+            } else
+                g = (g < 0 ? 0 : g << 4) | Character.digit(c, 16);
+        }
+        if (g >= 0)
+            result = group2long(result, k++, g, high);
+        if (v4 >= 0) {
+            result = group2long(result, k++, v4 >>> 16, high);
+            result = group2long(result, k, v4 & 0xFFFF, high);
+        }
+        return result;
     }
 
-    public static InetAddress minus1(InetAddress addr) {
-        return long2inet(inet2long(addr) - 1);
+    private static long group2long(long result, int k, long group, boolean high) {
+        int shift = (high ? 3 - k : 7 - k) * 16;
+        return (shift >= 0 && shift < 64 ? result | (group << shift) : result);
     }
 
-    public static InetAddress plus1(InetAddress addr) {
-        return long2inet(inet2long(addr) + 1);
+    private static long dotted2long(String addr, int start, int end) {
+        long result = 0;
+        int octet = 0;
+        for (int i = start; i < end; i++) {
+            char c = addr.charAt(i);
+            if (c == '.') {
+                result = result << 8 | octet;
+                octet = 0;
+            } else
+                octet = octet * 10 + (c - '0');
+        }
+        return result << 8 | octet;
     }
 
     public static class CIDR implements Comparable<CIDR> {
@@ -117,11 +196,22 @@ public class IPUtil {
         }
 
         public InetAddress getStart() {
-            return long2inet(inet2long(this.address) & prefix2mask(this.prefix));
+            try {
+                int bits = address.getAddress().length * 8;
+                return big2inet(inet2big(address).shiftRight(bits - prefix).shiftLeft(bits - prefix), bits / 8);
+            } catch (UnknownHostException ex) {
+                return null;
+            }
         }
 
         public InetAddress getEnd() {
-            return long2inet((inet2long(this.address) & prefix2mask(this.prefix)) + (1L << (32 - this.prefix)) - 1);
+            try {
+                int bits = address.getAddress().length * 8;
+                BigInteger host = BigInteger.ONE.shiftLeft(bits - prefix).subtract(BigInteger.ONE);
+                return big2inet(inet2big(getStart()).or(host), bits / 8);
+            } catch (UnknownHostException ex) {
+                return null;
+            }
         }
 
         @Override
@@ -131,9 +221,7 @@ public class IPUtil {
 
         @Override
         public int compareTo(@NonNull CIDR other) {
-            Long lcidr = IPUtil.inet2long(this.address);
-            Long lother = IPUtil.inet2long(other.address);
-            return lcidr.compareTo(lother);
+            return inet2big(this.address).compareTo(inet2big(other.address));
         }
     }
 }
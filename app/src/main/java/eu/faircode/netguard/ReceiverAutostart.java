@@ -74,18 +74,13 @@ public class ReceiverAutostart extends BroadcastReceiver {
                     editor.remove("unused");
 
                     SharedPreferences unused = context.getSharedPreferences("unused", Context.MODE_PRIVATE);
-                    SharedPreferences screen_wifi = context.getSharedPreferences("screen_wifi", Context.MODE_PRIVATE);
-                    SharedPreferences screen_other = context.getSharedPreferences("screen_other", Context.MODE_PRIVATE);
 
                     Map<String, ?> punused = unused.getAll();
-                    SharedPreferences.Editor edit_screen_wifi = screen_wifi.edit();
-                    SharedPreferences.Editor edit_screen_other = screen_other.edit();
+                    DatabaseHelper dh = DatabaseHelper.getInstance(context);
                     for (String key : punused.keySet()) {
-                        edit_screen_wifi.putBoolean(key, (Boolean) punused.get(key));
-                        edit_screen_other.putBoolean(key, (Boolean) punused.get(key));
+                        dh.setRuleFlag(key, Rule.FLAG_SCREEN_WIFI, (Boolean) punused.get(key));
+                        dh.setRuleFlag(key, Rule.FLAG_SCREEN_OTHER, (Boolean) punused.get(key));
                     }
-                    edit_screen_wifi.apply();
-                    edit_screen_other.apply();
 
                 } else if (oldVersion <= 2017032112)
                     editor.remove("ip6");
@@ -115,6 +110,7 @@ public class ReceiverAutostart extends BroadcastReceiver {
             if (Util.isPlayStoreInstall(context)) {
                 editor.remove("update_check");
                 editor.remove("use_hosts");
+                editor.remove("hosts_subdomains");
                 editor.remove("hosts_url");
             }
 
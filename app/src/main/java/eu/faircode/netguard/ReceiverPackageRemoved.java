@@ -38,6 +38,9 @@ public class ReceiverPackageRemoved extends BroadcastReceiver {
         Log.i(TAG, "Received " + intent);
         Util.logExtras(intent);
 
+        // Rules are cached until packages change
+        Rule.clearCache(context);
+
         int uid = intent.getIntExtra(Intent.EXTRA_UID, 0);
         if (uid > 0) {
             DatabaseHelper dh = DatabaseHelper.getInstance(context);
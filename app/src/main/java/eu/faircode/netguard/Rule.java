@@ -28,6 +28,7 @@ import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.os.Build;
 import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -42,10 +43,31 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-public class Rule {
+public class Rule implements Cloneable {
     private static final String TAG = "NetGuard.Rule";
 
+    // Bit-packed rule flags as stored by DatabaseHelper
+    public static final int FLAG_WIFI = 1;
+    public static final int FLAG_OTHER = 1 << 1;
+    public static final int FLAG_SCREEN_WIFI = 1 << 2;
+    public static final int FLAG_SCREEN_OTHER = 1 << 3;
+    public static final int FLAG_ROAMING = 1 << 4;
+    public static final int FLAG_LOCKDOWN = 1 << 5;
+    public static final int FLAG_APPLY = 1 << 6;
+    public static final int FLAG_NOTIFY = 1 << 7;
+    public static final int FLAG_NOTIFY_SECURITY_PROBLEM = 1 << 8;
+
+    // Former preferences file of each flag, by bit number
+    public static final String[] FLAG_NAMES = new String[]{
+            "wifi", "other", "screen_wifi", "screen_other", "roaming", "lockdown",
+            "apply", "notify", "notify_security_problem"};
+
     public int uid;
     public String packageName;
     public int icon;
@@ -82,10 +104,29 @@ public class Rule {
     public boolean expanded = false;
 
     private static List<PackageInfo> cachePackageInfo = null;
-    private static Map<PackageInfo, String> cacheLabel = new HashMap<>();
-    private static Map<String, Boolean> cacheSystem = new HashMap<>();
-    private static Map<String, Boolean> cacheInternet = new HashMap<>();
-    private static Map<PackageInfo, Boolean> cacheEnabled = new HashMap<>();
+    private static Map<PackageInfo, String> cacheLabel = new ConcurrentHashMap<>();
+    private static Map<String, Boolean> cacheSystem = new ConcurrentHashMap<>();
+    private static Map<String, Boolean> cacheInternet = new ConcurrentHashMap<>();
+    private static Map<PackageInfo, Boolean> cacheEnabled = new ConcurrentHashMap<>();
+
+    // Rules of all packages, copied for each caller
+    private static volatile List<Rule> cacheRules = null;
+    private static volatile int cacheGeneration = 0;
+    private static int cacheRuleGeneration = -1;
+    private static Predefined predefined = null;
+    private static ExecutorService executor = null;
+
+    private static final List<String> RULE_SETTINGS = Arrays.asList(
+            "whitelist_wifi", "whitelist_other", "screen_wifi", "screen_other", "whitelist_roaming",
+            "manage_system", "screen_on");
+
+    private static SharedPreferences.OnSharedPreferenceChangeListener settingsListener = null;
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null)
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        return executor;
+    }
 
     private static List<PackageInfo> getPackages(Context context) {
         if (cachePackageInfo == null) {
@@ -123,6 +164,7 @@ public class Rule {
 
     public static void clearCache(Context context) {
         Log.i(TAG, "Clearing cache");
+        invalidateRules();
         synchronized (context.getApplicationContext()) {
             cachePackageInfo = null;
             cacheLabel.clear();
@@ -195,42 +237,40 @@ public class Rule {
         }
     }
 
-    public static List<Rule> getRules(final boolean all, Context context) {
-        synchronized (context.getApplicationContext()) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            SharedPreferences wifi = context.getSharedPreferences("wifi", Context.MODE_PRIVATE);
-            SharedPreferences other = context.getSharedPreferences("other", Context.MODE_PRIVATE);
-            SharedPreferences screen_wifi = context.getSharedPreferences("screen_wifi", Context.MODE_PRIVATE);
-            SharedPreferences screen_other = context.getSharedPreferences("screen_other", Context.MODE_PRIVATE);
-            SharedPreferences roaming = context.getSharedPreferences("roaming", Context.MODE_PRIVATE);
-            SharedPreferences lockdown = context.getSharedPreferences("lockdown", Context.MODE_PRIVATE);
-            SharedPreferences apply = context.getSharedPreferences("apply", Context.MODE_PRIVATE);
-            SharedPreferences notify = context.getSharedPreferences("notify", Context.MODE_PRIVATE);
-            SharedPreferences notify_security_problem = context.getSharedPreferences("notify_security_problem", Context.MODE_PRIVATE);
+    private static void invalidateRules() {
+        cacheGeneration++;
+        cacheRules = null;
+    }
 
-            // Get settings
-            boolean default_wifi = prefs.getBoolean("whitelist_wifi", true);
-            boolean default_other = prefs.getBoolean("whitelist_other", true);
-            boolean default_screen_wifi = prefs.getBoolean("screen_wifi", false);
-            boolean default_screen_other = prefs.getBoolean("screen_other", false);
-            boolean default_roaming = prefs.getBoolean("whitelist_roaming", true);
+    // Changes whenever getRules could return different rules
+    public static long getGeneration(Context context) {
+        int ruleGeneration = DatabaseHelper.getInstance(context).getRuleGeneration();
+        return ((long) cacheGeneration << 32) | (ruleGeneration & 0xFFFFFFFFL);
+    }
 
-            boolean manage_system = prefs.getBoolean("manage_system", false);
-            boolean screen_on = prefs.getBoolean("screen_on", true);
-            boolean show_user = prefs.getBoolean("show_user", true);
-            boolean show_system = prefs.getBoolean("show_system", false);
-            boolean show_nointernet = prefs.getBoolean("show_nointernet", true);
-            boolean show_disabled = prefs.getBoolean("show_disabled", true);
+    private static void registerListener(Context context) {
+        // Preferences hold listeners as weak references
+        if (settingsListener == null) {
+            settingsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    if (RULE_SETTINGS.contains(key))
+                        invalidateRules();
+                }
+            };
+            PreferenceManager.getDefaultSharedPreferences(context)
+                    .registerOnSharedPreferenceChangeListener(settingsListener);
+        }
+    }
 
-            default_screen_wifi = default_screen_wifi && screen_on;
-            default_screen_other = default_screen_other && screen_on;
+    private static class Predefined {
+        private Map<String, Boolean> wifi_blocked = new HashMap<>();
+        private Map<String, Boolean> other_blocked = new HashMap<>();
+        private Map<String, Boolean> roaming = new HashMap<>();
+        private Map<String, String[]> related = new HashMap<>();
+        private Map<String, Boolean> system = new HashMap<>();
 
-            // Get predefined rules
-            Map<String, Boolean> pre_wifi_blocked = new HashMap<>();
-            Map<String, Boolean> pre_other_blocked = new HashMap<>();
-            Map<String, Boolean> pre_roaming = new HashMap<>();
-            Map<String, String[]> pre_related = new HashMap<>();
-            Map<String, Boolean> pre_system = new HashMap<>();
+        private Predefined(Context context) {
             try {
                 XmlResourceParser xml = context.getResources().getXml(R.xml.predefined);
                 int eventType = xml.getEventType();
@@ -239,24 +279,25 @@ public class Rule {
                         if ("wifi".equals(xml.getName())) {
                             String pkg = xml.getAttributeValue(null, "package");
                             boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
-                            pre_wifi_blocked.put(pkg, pblocked);
+                            wifi_blocked.put(pkg, pblocked);
 
                         } else if ("other".equals(xml.getName())) {
                             String pkg = xml.getAttributeValue(null, "package");
                             boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
-                            boolean proaming = xml.getAttributeBooleanValue(null, "roaming", default_roaming);
-                            pre_other_blocked.put(pkg, pblocked);
-                            pre_roaming.put(pkg, proaming);
+                            other_blocked.put(pkg, pblocked);
+                            // Without a roaming attribute the roaming setting applies
+                            if (xml.getAttributeValue(null, "roaming") != null)
+                                roaming.put(pkg, xml.getAttributeBooleanValue(null, "roaming", false));
 
                         } else if ("relation".equals(xml.getName())) {
                             String pkg = xml.getAttributeValue(null, "package");
                             String[] rel = xml.getAttributeValue(null, "related").split(",");
-                            pre_related.put(pkg, rel);
+                            related.put(pkg, rel);
 
                         } else if ("type".equals(xml.getName())) {
                             String pkg = xml.getAttributeValue(null, "package");
                             boolean system = xml.getAttributeBooleanValue(null, "system", true);
-                            pre_system.put(pkg, system);
+                            this.system.put(pkg, system);
                         }
 
 
@@ -265,106 +306,50 @@ public class Rule {
             } catch (Throwable ex) {
                 Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
+        }
+    }
 
-            // Build rule list
-            List<Rule> listRules = new ArrayList<>();
-            List<PackageInfo> listPI = getPackages(context);
-
-            // Add root
-            PackageInfo root = new PackageInfo();
-            root.packageName = "root";
-            root.versionCode = Build.VERSION.SDK_INT;
-            root.versionName = Build.VERSION.RELEASE;
-            root.applicationInfo = new ApplicationInfo();
-            root.applicationInfo.uid = 0;
-            root.applicationInfo.icon = 0;
-            listPI.add(root);
-
-            // Add mediaserver
-            PackageInfo media = new PackageInfo();
-            media.packageName = "android.media";
-            media.versionCode = Build.VERSION.SDK_INT;
-            media.versionName = Build.VERSION.RELEASE;
-            media.applicationInfo = new ApplicationInfo();
-            media.applicationInfo.uid = 1013;
-            media.applicationInfo.icon = 0;
-            listPI.add(media);
-
-            // Add GPS daemon
-            PackageInfo gps = new PackageInfo();
-            gps.packageName = "android.gps";
-            gps.versionCode = Build.VERSION.SDK_INT;
-            gps.versionName = Build.VERSION.RELEASE;
-            gps.applicationInfo = new ApplicationInfo();
-            gps.applicationInfo.uid = 1021;
-            gps.applicationInfo.icon = 0;
-            listPI.add(gps);
-
-            // Add nobody
-            PackageInfo nobody = new PackageInfo();
-            nobody.packageName = "nobody";
-            nobody.versionCode = Build.VERSION.SDK_INT;
-            nobody.versionName = Build.VERSION.RELEASE;
-            nobody.applicationInfo = new ApplicationInfo();
-            nobody.applicationInfo.uid = 9999;
-            nobody.applicationInfo.icon = 0;
-            listPI.add(nobody);
+    public static List<Rule> getRules(final boolean all, Context context) {
+        synchronized (context.getApplicationContext()) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
-            DatabaseHelper dh = DatabaseHelper.getInstance(context);
-            for (PackageInfo info : listPI)
-                try {
-                    // Skip self
-                    if (info.applicationInfo.uid == Process.myUid())
-                        continue;
+            // Get settings
+            boolean show_user = prefs.getBoolean("show_user", true);
+            boolean show_system = prefs.getBoolean("show_system", false);
+            boolean show_nointernet = prefs.getBoolean("show_nointernet", true);
+            boolean show_disabled = prefs.getBoolean("show_disabled", true);
 
-                    Rule rule = new Rule(dh, info, context);
+            boolean default_wifi = prefs.getBoolean("whitelist_wifi", true);
+            boolean default_other = prefs.getBoolean("whitelist_other", true);
+            boolean default_roaming = prefs.getBoolean("whitelist_roaming", true);
 
-                    if (pre_system.containsKey(info.packageName))
-                        rule.system = pre_system.get(info.packageName);
-                    if (info.applicationInfo.uid == Process.myUid())
-                        rule.system = true;
+            // Rule changes are counted by the database
+            DatabaseHelper dh = DatabaseHelper.getInstance(context);
+            int ruleGeneration = dh.getRuleGeneration();
+
+            List<Rule> cached = cacheRules;
+            if (cached == null || ruleGeneration != cacheRuleGeneration) {
+                int generation = cacheGeneration;
+                cached = buildRules(context);
+                if (generation == cacheGeneration) {
+                    cacheRules = cached;
+                    cacheRuleGeneration = ruleGeneration;
+                }
+            }
 
-                    if (all ||
-                            ((rule.system ? show_system : show_user) &&
-                                    (show_nointernet || rule.internet) &&
-                                    (show_disabled || rule.enabled))) {
-
-                        rule.wifi_default = (pre_wifi_blocked.containsKey(info.packageName) ? pre_wifi_blocked.get(info.packageName) : default_wifi);
-                        rule.other_default = (pre_other_blocked.containsKey(info.packageName) ? pre_other_blocked.get(info.packageName) : default_other);
-                        rule.screen_wifi_default = default_screen_wifi;
-                        rule.screen_other_default = default_screen_other;
-                        rule.roaming_default = (pre_roaming.containsKey(info.packageName) ? pre_roaming.get(info.packageName) : default_roaming);
-
-                        rule.wifi_blocked = (!(rule.system && !manage_system) && wifi.getBoolean(info.packageName, rule.wifi_default));
-                        rule.other_blocked = (!(rule.system && !manage_system) && other.getBoolean(info.packageName, rule.other_default));
-                        rule.screen_wifi = screen_wifi.getBoolean(info.packageName, rule.screen_wifi_default) && screen_on;
-                        rule.screen_other = screen_other.getBoolean(info.packageName, rule.screen_other_default) && screen_on;
-                        rule.roaming = roaming.getBoolean(info.packageName, rule.roaming_default);
-                        rule.lockdown = lockdown.getBoolean(info.packageName, false);
-
-                        rule.apply = apply.getBoolean(info.packageName, true);
-                        rule.notify = notify.getBoolean(info.packageName, true);
-                        rule.notify_security_problem = notify_security_problem.getBoolean(info.packageName, true);
-
-                        // Related packages
-                        List<String> listPkg = new ArrayList<>();
-                        if (pre_related.containsKey(info.packageName))
-                            listPkg.addAll(Arrays.asList(pre_related.get(info.packageName)));
-                        for (PackageInfo pi : listPI)
-                            if (pi.applicationInfo.uid == rule.uid && !pi.packageName.equals(rule.packageName)) {
-                                rule.relateduids = true;
-                                listPkg.add(pi.packageName);
-                            }
-                        rule.related = listPkg.toArray(new String[0]);
-
-                        rule.hosts = dh.getHostCount(rule.uid, true);
-
-                        rule.updateChanged(default_wifi, default_other, default_roaming);
-
-                        listRules.add(rule);
-                    }
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            // Build rule list
+            Map<Integer, Long> mapHosts = dh.getHostCounts();
+            List<Rule> listRules = new ArrayList<>();
+            for (Rule cache : cached)
+                if (all ||
+                        ((cache.system ? show_system : show_user) &&
+                                (show_nointernet || cache.internet) &&
+                                (show_disabled || cache.enabled))) {
+                    Rule rule = cache.copy();
+                    Long hosts = mapHosts.get(rule.uid);
+                    rule.hosts = (hosts == null ? 0 : hosts);
+                    rule.updateChanged(default_wifi, default_other, default_roaming);
+                    listRules.add(rule);
                 }
 
             // Sort rule list
@@ -402,6 +387,168 @@ public class Rule {
         }
     }
 
+    private static List<Rule> buildRules(final Context context) {
+        long start = SystemClock.elapsedRealtime();
+        registerListener(context);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        final DatabaseHelper dh = DatabaseHelper.getInstance(context);
+
+        // Load all stored rules at once
+        final Map<String, Long> mapRule = new HashMap<>();
+        Cursor cursor = dh.getRules();
+        try {
+            while (cursor.moveToNext())
+                mapRule.put(cursor.getString(0), ((long) cursor.getInt(2) << 32) | (cursor.getInt(1) & 0xFFFFFFFFL));
+        } finally {
+            cursor.close();
+        }
+
+        // Get settings
+        final boolean default_wifi = prefs.getBoolean("whitelist_wifi", true);
+        final boolean default_other = prefs.getBoolean("whitelist_other", true);
+        final boolean default_roaming = prefs.getBoolean("whitelist_roaming", true);
+
+        final boolean manage_system = prefs.getBoolean("manage_system", false);
+        final boolean screen_on = prefs.getBoolean("screen_on", true);
+
+        final boolean default_screen_wifi = prefs.getBoolean("screen_wifi", false) && screen_on;
+        final boolean default_screen_other = prefs.getBoolean("screen_other", false) && screen_on;
+
+        // Get predefined rules, these don't change while running
+        if (predefined == null)
+            predefined = new Predefined(context);
+        final Predefined pre = predefined;
+
+        List<PackageInfo> listPI = getPackages(context);
+
+        // Add root
+        PackageInfo root = new PackageInfo();
+        root.packageName = "root";
+        root.versionCode = Build.VERSION.SDK_INT;
+        root.versionName = Build.VERSION.RELEASE;
+        root.applicationInfo = new ApplicationInfo();
+        root.applicationInfo.uid = 0;
+        root.applicationInfo.icon = 0;
+        listPI.add(root);
+
+        // Add mediaserver
+        PackageInfo media = new PackageInfo();
+        media.packageName = "android.media";
+        media.versionCode = Build.VERSION.SDK_INT;
+        media.versionName = Build.VERSION.RELEASE;
+        media.applicationInfo = new ApplicationInfo();
+        media.applicationInfo.uid = 1013;
+        media.applicationInfo.icon = 0;
+        listPI.add(media);
+
+        // Add GPS daemon
+        PackageInfo gps = new PackageInfo();
+        gps.packageName = "android.gps";
+        gps.versionCode = Build.VERSION.SDK_INT;
+        gps.versionName = Build.VERSION.RELEASE;
+        gps.applicationInfo = new ApplicationInfo();
+        gps.applicationInfo.uid = 1021;
+        gps.applicationInfo.icon = 0;
+        listPI.add(gps);
+
+        // Add nobody
+        PackageInfo nobody = new PackageInfo();
+        nobody.packageName = "nobody";
+        nobody.versionCode = Build.VERSION.SDK_INT;
+        nobody.versionName = Build.VERSION.RELEASE;
+        nobody.applicationInfo = new ApplicationInfo();
+        nobody.applicationInfo.uid = 9999;
+        nobody.applicationInfo.icon = 0;
+        listPI.add(nobody);
+
+        // Packages sharing a uid
+        final Map<Integer, List<String>> mapUidPackages = new HashMap<>();
+        for (PackageInfo info : listPI) {
+            if (!mapUidPackages.containsKey(info.applicationInfo.uid))
+                mapUidPackages.put(info.applicationInfo.uid, new ArrayList<String>());
+            mapUidPackages.get(info.applicationInfo.uid).add(info.packageName);
+        }
+
+        // Package manager and database lookups are done in parallel
+        List<Future<Rule>> listFuture = new ArrayList<>();
+        for (final PackageInfo info : listPI) {
+            // Skip self
+            if (info.applicationInfo.uid == Process.myUid())
+                continue;
+
+            listFuture.add(getExecutor().submit(new Callable<Rule>() {
+                @Override
+                public Rule call() {
+                    Rule rule = new Rule(dh, info, context);
+
+                    if (pre.system.containsKey(info.packageName))
+                        rule.system = pre.system.get(info.packageName);
+                    if (info.applicationInfo.uid == Process.myUid())
+                        rule.system = true;
+
+                    rule.wifi_default = (pre.wifi_blocked.containsKey(info.packageName) ? pre.wifi_blocked.get(info.packageName) : default_wifi);
+                    rule.other_default = (pre.other_blocked.containsKey(info.packageName) ? pre.other_blocked.get(info.packageName) : default_other);
+                    rule.screen_wifi_default = default_screen_wifi;
+                    rule.screen_other_default = default_screen_other;
+                    rule.roaming_default = (pre.roaming.containsKey(info.packageName) ? pre.roaming.get(info.packageName) : default_roaming);
+
+                    Long stored = mapRule.get(info.packageName);
+                    long flags = (stored == null ? 0 : stored);
+                    rule.wifi_blocked = (!(rule.system && !manage_system) && getFlag(flags, FLAG_WIFI, rule.wifi_default));
+                    rule.other_blocked = (!(rule.system && !manage_system) && getFlag(flags, FLAG_OTHER, rule.other_default));
+                    rule.screen_wifi = getFlag(flags, FLAG_SCREEN_WIFI, rule.screen_wifi_default) && screen_on;
+                    rule.screen_other = getFlag(flags, FLAG_SCREEN_OTHER, rule.screen_other_default) && screen_on;
+                    rule.roaming = getFlag(flags, FLAG_ROAMING, rule.roaming_default);
+                    rule.lockdown = getFlag(flags, FLAG_LOCKDOWN, false);
+
+                    rule.apply = getFlag(flags, FLAG_APPLY, true);
+                    rule.notify = getFlag(flags, FLAG_NOTIFY, true);
+                    rule.notify_security_problem = getFlag(flags, FLAG_NOTIFY_SECURITY_PROBLEM, true);
+
+                    // Related packages
+                    List<String> listPkg = new ArrayList<>();
+                    if (pre.related.containsKey(info.packageName))
+                        listPkg.addAll(Arrays.asList(pre.related.get(info.packageName)));
+                    for (String pkg : mapUidPackages.get(rule.uid))
+                        if (!pkg.equals(rule.packageName)) {
+                            rule.relateduids = true;
+                            listPkg.add(pkg);
+                        }
+                    rule.related = listPkg.toArray(new String[0]);
+
+                    return rule;
+                }
+            }));
+        }
+
+        List<Rule> listRules = new ArrayList<>();
+        for (Future<Rule> future : listFuture)
+            try {
+                listRules.add(future.get());
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+
+        Log.i(TAG, "Built rules=" + listRules.size() + " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms");
+        return listRules;
+    }
+
+    // Flags packed by DatabaseHelper.getRule, the default applies if the flag isn't set
+    public static boolean getFlag(long flags, int flag, boolean def) {
+        if (((flags >>> 32) & flag) == 0)
+            return def;
+        return ((flags & flag) != 0);
+    }
+
+    private Rule copy() {
+        try {
+            return (Rule) clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
     private void updateChanged(boolean default_wifi, boolean default_other, boolean default_roaming) {
         changed = (wifi_blocked != default_wifi ||
                 (other_blocked != default_other) ||
@@ -0,0 +1,294 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+import android.support.annotation.NonNull;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Prepared rules as read by isAddressAllowed
+// A snapshot is never modified after it has been published, changes create a new snapshot
+public class RuleSnapshot {
+    public static final int NONE = 0;
+    public static final int ALLOWED = 1;
+    public static final int BLOCKED = 2;
+    public static final int EXPIRED = 3;
+
+    public static final RuleSnapshot EMPTY = new RuleSnapshot(
+            false, new SparseBooleanArray(), new SparseBooleanArray(),
+            new LongSparseArray<AddressFilter>(), new SparseArray<RangeFilter>(), new SparseArray<Redirect>());
+
+    // Shared result for allowed traffic which isn't redirected
+    private static final Allowed ALLOW = new Allowed();
+
+    public final boolean filter;
+    private final SparseBooleanArray uidAllowed;
+    private final SparseBooleanArray uidKnown;
+    private final LongSparseArray<AddressFilter> ipFilters;
+    private final SparseArray<RangeFilter> ranges;
+    private final SparseArray<Redirect> forward;
+
+    private RuleSnapshot(boolean filter,
+                         SparseBooleanArray uidAllowed, SparseBooleanArray uidKnown,
+                         LongSparseArray<AddressFilter> ipFilters, SparseArray<RangeFilter> ranges,
+                         SparseArray<Redirect> forward) {
+        this.filter = filter;
+        this.uidAllowed = uidAllowed;
+        this.uidKnown = uidKnown;
+        this.ipFilters = ipFilters;
+        this.ranges = ranges;
+        this.forward = forward;
+    }
+
+    public RuleSnapshot withUids(boolean filter, SparseBooleanArray uidAllowed, SparseBooleanArray uidKnown) {
+        return new RuleSnapshot(filter, uidAllowed, uidKnown, ipFilters, ranges, forward);
+    }
+
+    public RuleSnapshot withFilters(LongSparseArray<AddressFilter> ipFilters) {
+        return new RuleSnapshot(filter, uidAllowed, uidKnown, ipFilters, ranges, forward);
+    }
+
+    public RuleSnapshot withRanges(SparseArray<RangeFilter> ranges) {
+        return new RuleSnapshot(filter, uidAllowed, uidKnown, ipFilters, ranges, forward);
+    }
+
+    public RuleSnapshot withForwarding(SparseArray<Redirect> forward) {
+        return new RuleSnapshot(filter, uidAllowed, uidKnown, ipFilters, ranges, forward);
+    }
+
+    public LongSparseArray<AddressFilter> getFilters() {
+        return ipFilters;
+    }
+
+    // long is 64 bits
+    // 0..15 uid
+    // 16..31 dport
+    // 32..39 protocol
+    // 40..43 version
+    public static long key(int version, int protocol, int dport, int uid) {
+        return ((long) version << 40) | ((long) protocol << 32) | ((long) dport << 16) | uid;
+    }
+
+    public boolean isKnown(int uid) {
+        return uidKnown.get(uid);
+    }
+
+    public boolean isAllowed(int uid) {
+        return uidAllowed.get(uid);
+    }
+
+    public AddressFilter getFilter(long key) {
+        return ipFilters.get(key);
+    }
+
+    public RangeFilter getRange(int uid) {
+        return ranges.get(uid);
+    }
+
+    public boolean isForwarded(int dport) {
+        return (forward.get(dport) != null);
+    }
+
+    public Allowed getAllowed(Packet packet) {
+        Redirect redirect = forward.get(packet.dport);
+        if (redirect == null || redirect.ruid == packet.uid)
+            return ALLOW;
+        packet.data = redirect.data;
+        return redirect.allowed;
+    }
+
+    public static class Redirect {
+        private final int ruid;
+        private final Allowed allowed;
+        private final String data;
+
+        public Redirect(Forward fwd) {
+            this.ruid = fwd.ruid;
+            this.allowed = new Allowed(fwd.raddr, fwd.rport);
+            this.data = "> " + fwd.raddr + "/" + fwd.rport;
+        }
+    }
+
+    // Addresses sorted as unsigned 128 bit numbers for a binary search
+    public static class AddressFilter {
+        private final long[] high;
+        private final long[] low;
+        private final boolean[] block;
+        private final long[] expires;
+
+        private AddressFilter(List<Entry> listEntry) {
+            int size = listEntry.size();
+            this.high = new long[size];
+            this.low = new long[size];
+            this.block = new boolean[size];
+            this.expires = new long[size];
+            for (int i = 0; i < size; i++) {
+                Entry entry = listEntry.get(i);
+                this.high[i] = entry.high;
+                this.low[i] = entry.low;
+                this.block[i] = entry.block;
+                this.expires[i] = entry.expires;
+            }
+        }
+
+        public int check(long high, long low, long now) {
+            int lo = 0;
+            int hi = this.high.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compare(this.high[mid], this.low[mid], high, low);
+                if (cmp < 0)
+                    lo = mid + 1;
+                else if (cmp > 0)
+                    hi = mid - 1;
+                else if (now > expires[mid])
+                    return EXPIRED;
+                else
+                    return (block[mid] ? BLOCKED : ALLOWED);
+            }
+            return NONE;
+        }
+
+        private static int compare(long high1, long low1, long high2, long low2) {
+            int cmp = Long.compare(high1 ^ Long.MIN_VALUE, high2 ^ Long.MIN_VALUE);
+            return (cmp == 0 ? Long.compare(low1 ^ Long.MIN_VALUE, low2 ^ Long.MIN_VALUE) : cmp);
+        }
+
+        public static class Builder {
+            private List<Entry> listEntry = new ArrayList<>();
+
+            public Builder add(String addr, boolean block, long expires) {
+                listEntry.add(new Entry(IPUtil.addr2high(addr), IPUtil.addr2low(addr), block, expires));
+                return this;
+            }
+
+            public AddressFilter build() {
+                Collections.sort(listEntry);
+                return new AddressFilter(listEntry);
+            }
+        }
+
+        private static class Entry implements Comparable<Entry> {
+            private final long high;
+            private final long low;
+            private final boolean block;
+            private final long expires;
+
+            Entry(long high, long low, boolean block, long expires) {
+                this.high = high;
+                this.low = low;
+                this.block = block;
+                this.expires = expires;
+            }
+
+            @Override
+            public int compareTo(@NonNull Entry other) {
+                return compare(this.high, this.low, other.high, other.low);
+            }
+        }
+    }
+
+    // Address prefixes in a binary trie, one bit per level
+    // A lookup takes at most 32 or 128 steps, whatever the number of prefixes
+    // The longest matching prefix decides
+    public static class RangeFilter {
+        // Node 0 is the IPv4 root and node 1 the IPv6 root
+        // Roots are never children, so child 0 means no child
+        private final int[] zero;
+        private final int[] one;
+        private final byte[] verdict;
+
+        private RangeFilter(int[] zero, int[] one, byte[] verdict) {
+            this.zero = zero;
+            this.one = one;
+            this.verdict = verdict;
+        }
+
+        public int check(int version, long high, long low) {
+            int node = (version == 4 ? 0 : 1);
+            int bits = (version == 4 ? 32 : 128);
+            int result = verdict[node];
+            for (int i = 0; i < bits; i++) {
+                long bit;
+                if (version == 4)
+                    bit = (low >>> (31 - i)) & 1;
+                else
+                    bit = (i < 64 ? high >>> (63 - i) : low >>> (127 - i)) & 1;
+                node = (bit == 0 ? zero[node] : one[node]);
+                if (node == 0)
+                    break;
+                if (verdict[node] != NONE)
+                    result = verdict[node];
+            }
+            return result;
+        }
+
+        public static class Builder {
+            private int[] zero = new int[64];
+            private int[] one = new int[64];
+            private byte[] verdict = new byte[64];
+            private int size = 2;
+
+            public Builder add(IPUtil.CIDR cidr, boolean block) {
+                byte[] addr = cidr.address.getAddress();
+                int prefix = Math.min(Math.max(cidr.prefix, 0), addr.length * 8);
+
+                int node = (addr.length == 4 ? 0 : 1);
+                for (int i = 0; i < prefix; i++) {
+                    boolean set = ((addr[i >> 3] >> (7 - (i & 7))) & 1) != 0;
+                    int child = (set ? one[node] : zero[node]);
+                    if (child == 0) {
+                        child = newNode();
+                        if (set)
+                            one[node] = child;
+                        else
+                            zero[node] = child;
+                    }
+                    node = child;
+                }
+
+                // Blocking wins when the same prefix is both allowed and blocked
+                if (verdict[node] != BLOCKED)
+                    verdict[node] = (byte) (block ? BLOCKED : ALLOWED);
+                return this;
+            }
+
+            private int newNode() {
+                if (size == verdict.length) {
+                    zero = Arrays.copyOf(zero, size * 2);
+                    one = Arrays.copyOf(one, size * 2);
+                    verdict = Arrays.copyOf(verdict, size * 2);
+                }
+                return size++;
+            }
+
+            public RangeFilter build() {
+                return new RangeFilter(
+                        Arrays.copyOf(zero, size), Arrays.copyOf(one, size), Arrays.copyOf(verdict, size));
+            }
+        }
+    }
+}
@@ -70,6 +70,9 @@ import android.text.TextUtils;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
 import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.TypedValue;
 import android.widget.RemoteViews;
 
@@ -84,6 +87,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.math.BigInteger;
 import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
@@ -92,22 +96,26 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.net.ssl.HttpsURLConnection;
@@ -136,6 +144,11 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private boolean last_connected = false;
     private boolean last_metered = true;
     private boolean last_interactive = false;
+    private AllowedSets last_sets = null;
+    private int last_state = -1;
+    private Settings last_filter_settings = null;
+    private int last_filter_generation = -1;
+    private boolean last_filter_purchased = false;
     private boolean powersaving = false;
 
     private int last_allowed = -1;
@@ -143,17 +156,24 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private int last_hosts = -1;
 
     private long jni_context = 0;
+    private ByteBuffer log_ring = null;
+    private final AtomicInteger verdict_generation = new AtomicInteger();
     private Thread tunnelThread = null;
     private ServiceSinkhole.Builder last_builder = null;
+    private String last_native = null;
     private ParcelFileDescriptor vpn = null;
     private boolean temporarilyStopped = false;
 
     private long last_hosts_modified = 0;
-    private Map<String, Boolean> mapHostsBlocked = new HashMap<>();
-    private Map<Integer, Boolean> mapUidAllowed = new HashMap<>();
-    private Map<Integer, Integer> mapUidKnown = new HashMap<>();
+    private boolean last_hosts_subdomains = false;
+    private volatile int hosts_blocked = 0;
+    private volatile RuleSnapshot rules = RuleSnapshot.EMPTY;
+    private volatile Settings settings;
     private final Map<Long, Map<InetAddress, IPRule>> mapUidIPFilters = new HashMap<>();
-    private Map<Integer, Forward> mapForward = new HashMap<>();
+    // Resolved addresses waiting to be stored, filters are rebuilt from the database
+    private final List<ResourceRecord> listDnsPending = new ArrayList<>();
+    private final Map<String, List<DomainRule>> mapDomainRules = new HashMap<>();
+    private final DomainTrie<DomainRule> domainWildcards = new DomainTrie<>();
     private Map<Integer, Boolean> mapNotify = new HashMap<>();
     private Map<Integer, Boolean> mapSecurityProblemNotify = new HashMap<>();
     private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
@@ -187,9 +207,29 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private static final int MSG_STATS_START = 1;
     private static final int MSG_STATS_STOP = 2;
     private static final int MSG_STATS_UPDATE = 3;
-    private static final int MSG_PACKET = 4;
+    private static final int MSG_RECORDS = 4;
     private static final int MSG_USAGE = 5;
     private static final int MSG_CONNECTION = 6;
+    private static final int MSG_DNS = 7;
+    private static final int MSG_FLUSH = 8;
+
+    // Log records are written when this many are waiting, or after the delay in milliseconds
+    private static final int LOG_BATCH = 100;
+    private static final long LOG_DELAY = 500;
+
+    // Layout of struct log_record in netguard.h
+    private static final int LOG_RECORD_SIZE = 448;
+    private static final int LOG_TIME = 0;
+    private static final int LOG_UID = 8;
+    private static final int LOG_VERSION = 12;
+    private static final int LOG_PROTOCOL = 13;
+    private static final int LOG_ALLOWED = 14;
+    private static final int LOG_SPORT = 16;
+    private static final int LOG_DPORT = 18;
+    private static final int LOG_FLAGS = 20;
+    private static final int LOG_SADDR = 32;
+    private static final int LOG_DADDR = 80;
+    private static final int LOG_DATA = 128;
 
     private enum State {none, waiting, enforcing, stats}
 
@@ -207,16 +247,32 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private native void jni_start(long context, int loglevel);
 
-    private native void jni_run(long context, int tun, boolean fwd53, int rcode);
+    private native void jni_run(long context, int tun, boolean fwd53, int rcode, boolean async);
 
     private native void jni_stop(long context);
 
     private native void jni_clear(long context);
 
+    private native void jni_recheck(long context);
+
+    private native long jni_get_dropped(int tun);
+
     private native int jni_get_mtu();
 
     private native int[] jni_get_stats(long context);
 
+    private native void jni_set_generation(long context, int generation);
+
+    private native ByteBuffer jni_get_log(long context);
+
+    private native void jni_set_log(long context, boolean enabled);
+
+    private native long jni_peek_log(long context);
+
+    private native int jni_release_log(long context, int count);
+
+    private native void jni_set_hosts(long context, String[] names, boolean subdomains);
+
     private static native void jni_pcap(String name, int record_size, int file_size);
 
     private native void jni_socks5(String addr, int port, String username, String password);
@@ -501,15 +557,19 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 state = State.enforcing;
                 Log.d(TAG, "Start foreground state=" + state.toString());
 
-                List<Rule> listRule = Rule.getRules(true, ServiceSinkhole.this);
-                List<Rule> listAllowed = getAllowedRules(listRule);
+                AllowedSets sets = getAllowedSets();
+                int state = getNetworkState();
+                List<Rule> listRule = sets.listRule;
+                List<Rule> listAllowed = getAllowedRules(sets, state);
 
                 last_builder = getBuilder(listAllowed, listRule);
                 vpn = startVPN(last_builder);
                 if (vpn == null)
                     throw new StartFailedException(getString((R.string.msg_start_failed)));
 
-                startNative(vpn, listAllowed, listRule);
+                startNative(vpn, sets, state);
+                last_sets = sets;
+                last_state = state;
 
                 removeWarningNotifications();
                 updateEnforcingNotification(listAllowed.size(), listRule.size());
@@ -517,23 +577,16 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
 
         private void reload(boolean interactive) {
-            List<Rule> listRule = Rule.getRules(true, ServiceSinkhole.this);
+            AllowedSets sets = getAllowedSets();
+            int state = getNetworkState();
+            List<Rule> listRule = sets.listRule;
 
             // Check if rules needs to be reloaded
-            if (interactive) {
-                boolean process = false;
-                for (Rule rule : listRule) {
-                    boolean blocked = (last_metered ? rule.other_blocked : rule.wifi_blocked);
-                    boolean screen = (last_metered ? rule.screen_other : rule.screen_wifi);
-                    if (blocked && screen) {
-                        process = true;
-                        break;
-                    }
-                }
-                if (!process) {
-                    Log.i(TAG, "No changed rules on interactive state change");
-                    return;
-                }
+            if (interactive && vpn != null && sets == last_sets &&
+                    sets.getAllowed(state) == sets.getAllowed(last_state)) {
+                Log.i(TAG, "No changed rules on interactive state change");
+                last_state = state;
+                return;
             }
 
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
@@ -549,9 +602,15 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 Log.d(TAG, "Start foreground state=" + state.toString());
             }
 
-            List<Rule> listAllowed = getAllowedRules(listRule);
+            List<Rule> listAllowed = getAllowedRules(sets, state);
             ServiceSinkhole.Builder builder = getBuilder(listAllowed, listRule);
 
+            long start = SystemClock.elapsedRealtime();
+            ParcelFileDescriptor prev_vpn = vpn;
+            long dropped = (vpn == null ? -1 : jni_get_dropped(vpn.getFd()));
+            boolean prepared = false;
+            boolean live = false;
+
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1) {
                 last_builder = builder;
                 Log.i(TAG, "Legacy restart");
@@ -568,9 +627,18 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 vpn = startVPN(last_builder);
 
             } else {
-                if (vpn != null && prefs.getBoolean("filter", false) && builder.equals(last_builder)) {
-                    Log.i(TAG, "Native restart");
-                    stopNative(vpn, clear);
+                if (vpn != null && settings.filter && builder.equals(last_builder)) {
+                    // Swap the prepared rules and let the running tunnel check its sessions again
+                    prepareNative(sets, state);
+                    prepared = true;
+                    if (!clear && tunnelThread != null && getNativeConfig().equals(last_native)) {
+                        Log.i(TAG, "Live update");
+                        jni_recheck(jni_context);
+                        live = true;
+                    } else {
+                        Log.i(TAG, "Native restart");
+                        stopNative(vpn, clear);
+                    }
 
                 } else {
                     last_builder = builder;
@@ -604,7 +672,22 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             if (vpn == null)
                 throw new StartFailedException(getString((R.string.msg_start_failed)));
 
-            startNative(vpn, listAllowed, listRule);
+            if (!live)
+                if (prepared)
+                    runNative(vpn);
+                else
+                    startNative(vpn, sets, state);
+            last_sets = sets;
+            last_state = state;
+
+            // Packets dropped can only be measured when the tun interface was kept
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            if (vpn == prev_vpn && dropped >= 0) {
+                long after = jni_get_dropped(vpn.getFd());
+                dropped = (after < 0 ? -1 : after - dropped);
+            } else
+                dropped = -1;
+            Log.i(TAG, "Reload " + (live ? "live" : "restart") + " elapsed=" + elapsed + " ms dropped=" + dropped);
 
             removeWarningNotifications();
             updateEnforcingNotification(listAllowed.size(), listRule.size());
@@ -639,7 +722,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
         private void householding(Intent intent) {
             // Keep log records for three days
-            DatabaseHelper.getInstance(ServiceSinkhole.this).cleanupLog(new Date().getTime() - 3 * 24 * 3600 * 1000L);
+            DatabaseHelper.getInstance(ServiceSinkhole.this).cleanupLog(new Date().getTime() - DatabaseHelper.LOG_RETENTION);
 
             // Clear expired DNS records
             DatabaseHelper.getInstance(ServiceSinkhole.this).cleanupDns();
@@ -714,6 +797,16 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     }
 
     private final class LogHandler extends Handler {
+        // Traffic log records waiting to be written
+        private List<Packet> listLog = new ArrayList<>();
+        private List<String> listLogDName = new ArrayList<>();
+        private int logConnection;
+        private boolean logInteractive;
+
+        // Access and usage waiting to be written, merged by access key
+        private Map<String, Packet> mapAccess = new LinkedHashMap<>();
+        private Map<String, Usage> mapUsage = new LinkedHashMap<>();
+
         public LogHandler(Looper looper) {
             super(looper);
         }
@@ -721,22 +814,30 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         @Override
         public void handleMessage(Message msg) {
             try {
-                if (powersaving && (msg.what == MSG_PACKET || msg.what == MSG_USAGE || msg.what == MSG_CONNECTION))
+                if (powersaving && (msg.what == MSG_USAGE || msg.what == MSG_CONNECTION))
                     return;
 
                 switch (msg.what) {
-                    case MSG_PACKET:
-                        log((Packet) msg.obj, msg.arg1, msg.arg2 > 0);
+                    case MSG_RECORDS:
+                        records(msg.arg1, msg.arg2 > 0);
                         break;
 
                     case MSG_USAGE:
-                        usage((Usage) msg.obj);
+                        usage((Usage[]) msg.obj);
                         break;
 
                     case MSG_CONNECTION:
                         log_connection((ACNPacket) msg.obj, msg.arg1, msg.arg2 > 0);
                         break;
 
+                    case MSG_DNS:
+                        dns((ResourceRecord) msg.obj);
+                        break;
+
+                    case MSG_FLUSH:
+                        flush();
+                        break;
+
                     default:
                         Log.e(TAG, "Unknown log message=" + msg.what);
                 }
@@ -745,11 +846,62 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             }
         }
 
+        private void records(int connection, boolean interactive) {
+            // Drain the native log ring until it is empty
+            int size = log_ring.capacity() / LOG_RECORD_SIZE;
+            while (true) {
+                long pending = jni_peek_log(jni_context);
+                int first = (int) (pending >> 32);
+                int count = (int) pending;
+                if (count == 0)
+                    break;
+
+                // Records are released unread in power saving mode
+                if (!powersaving)
+                    for (int i = 0; i < count; i++)
+                        try {
+                            log(getRecord((first + i) % size * LOG_RECORD_SIZE), connection, interactive);
+                        } catch (Throwable ex) {
+                            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                        }
+
+                int lost = jni_release_log(jni_context, count);
+                if (lost > 0)
+                    Log.w(TAG, "Log records dropped=" + lost);
+            }
+        }
+
+        private Packet getRecord(int offset) {
+            Packet packet = new Packet();
+            packet.time = log_ring.getLong(offset + LOG_TIME);
+            packet.uid = log_ring.getInt(offset + LOG_UID);
+            packet.version = log_ring.get(offset + LOG_VERSION) & 0xFF;
+            packet.protocol = log_ring.get(offset + LOG_PROTOCOL) & 0xFF;
+            packet.allowed = (log_ring.get(offset + LOG_ALLOWED) != 0);
+            packet.sport = log_ring.getShort(offset + LOG_SPORT) & 0xFFFF;
+            packet.dport = log_ring.getShort(offset + LOG_DPORT) & 0xFFFF;
+            packet.flags = getString(offset + LOG_FLAGS, LOG_SADDR - LOG_FLAGS);
+            packet.saddr = getString(offset + LOG_SADDR, LOG_DADDR - LOG_SADDR);
+            packet.daddr = getString(offset + LOG_DADDR, LOG_DATA - LOG_DADDR);
+            packet.data = getString(offset + LOG_DATA, LOG_RECORD_SIZE - LOG_DATA);
+            return packet;
+        }
+
+        private String getString(int offset, int max) {
+            int len = 0;
+            while (len < max && log_ring.get(offset + len) != 0)
+                len++;
+            byte[] bytes = new byte[len];
+            for (int i = 0; i < len; i++)
+                bytes[i] = log_ring.get(offset + i);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
         private void log(Packet packet, int connection, boolean interactive) {
             // Get settings
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-            boolean log = prefs.getBoolean("log", false);
-            boolean log_app = prefs.getBoolean("log_app", false);
+            Settings settings = ServiceSinkhole.this.settings;
+            boolean log = settings.log;
+            boolean log_app = settings.log_app;
 
             DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
 
@@ -757,27 +909,85 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             String dname = dh.getQName(packet.uid, packet.daddr);
 
             // Traffic log
-            if (log)
-                dh.insertLog(packet, dname, connection, interactive);
+            if (log) {
+                if (listLog.size() > 0 && (connection != logConnection || interactive != logInteractive))
+                    flush();
+                if (listLog.size() == 0) {
+                    logConnection = connection;
+                    logInteractive = interactive;
+                }
+                listLog.add(packet);
+                listLogDName.add(dname);
+            }
 
             // Application log
             if (log_app && packet.uid >= 0 && !(packet.uid == 0 && packet.protocol == 17 && packet.dport == 53)) {
-                if (!(packet.protocol == 6 /* TCP */ || packet.protocol == 17 /* UDP */))
-                    packet.dport = 0;
-                if (dh.updateAccess(packet, dname, -1)) {
+                Packet access = new Packet();
+                access.time = packet.time;
+                access.uid = packet.uid;
+                access.version = packet.version;
+                access.protocol = packet.protocol;
+                access.daddr = (dname == null ? packet.daddr : dname);
+                if (packet.protocol == 6 /* TCP */ || packet.protocol == 17 /* UDP */)
+                    access.dport = packet.dport;
+                access.allowed = packet.allowed;
+
+                // The latest access of a key wins
+                mapAccess.put(getAccessKey(access.uid, access.version, access.protocol, access.daddr, access.dport), access);
+            }
+
+            if (listLog.size() >= LOG_BATCH || mapAccess.size() >= LOG_BATCH)
+                flush();
+            else if (log || log_app)
+                schedule();
+        }
+
+        private String getAccessKey(int uid, int version, int protocol, String daddr, int dport) {
+            return uid + "/" + version + "/" + protocol + "/" + daddr + "/" + dport;
+        }
+
+        private void schedule() {
+            if (!hasMessages(MSG_FLUSH))
+                sendEmptyMessageDelayed(MSG_FLUSH, LOG_DELAY);
+        }
+
+        // Write the waiting records, a transaction per table
+        private void flush() {
+            removeMessages(MSG_FLUSH);
+            DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
+
+            if (listLog.size() > 0) {
+                List<Packet> listPacket = listLog;
+                List<String> listDName = listLogDName;
+                listLog = new ArrayList<>();
+                listLogDName = new ArrayList<>();
+                dh.insertLog(listPacket, listDName, logConnection, logInteractive);
+            }
+
+            // Access before usage, usage is only added to existing access
+            if (mapAccess.size() > 0) {
+                List<Packet> listAccess = new ArrayList<>(mapAccess.values());
+                mapAccess.clear();
+                for (Packet access : dh.updateAccess(listAccess)) {
                     lock.readLock().lock();
-                    if (!mapNotify.containsKey(packet.uid) || mapNotify.get(packet.uid))
-                        showAccessNotification(packet.uid);
+                    if (!mapNotify.containsKey(access.uid) || mapNotify.get(access.uid))
+                        showAccessNotification(access.uid);
                     lock.readLock().unlock();
                 }
             }
+
+            if (mapUsage.size() > 0) {
+                List<Usage> listUsage = new ArrayList<>(mapUsage.values());
+                mapUsage.clear();
+                dh.updateUsage(listUsage);
+            }
         }
 
         private void log_connection(ACNPacket packet, int connection, boolean interactive) {
             // Get settings
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-            boolean security = prefs.getBoolean("security", false);
-            boolean log_app = prefs.getBoolean("log_app", false);
+            Settings settings = ServiceSinkhole.this.settings;
+            boolean security = settings.security;
+            boolean log_app = settings.log_app;
 
             DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
 
@@ -826,19 +1036,46 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             }
         }
 
-        private void usage(Usage usage) {
-            if (usage.Uid >= 0 && !(usage.Uid == 0 && usage.Protocol == 17 && usage.DPort == 53)) {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-                boolean filter = prefs.getBoolean("filter", false);
-                boolean log_app = prefs.getBoolean("log_app", false);
-                boolean track_usage = prefs.getBoolean("track_usage", false);
-                if (filter && log_app && track_usage) {
-                    DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
+        private void dns(ResourceRecord rr) {
+            if (DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(rr))
+                Log.i(TAG, "New IP " + rr);
+
+            lock.writeLock().lock();
+            listDnsPending.remove(rr);
+            lock.writeLock().unlock();
+        }
+
+        private void usage(Usage[] usages) {
+            Settings settings = ServiceSinkhole.this.settings;
+            if (!(settings.filter && settings.log_app && settings.track_usage))
+                return;
+
+            DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
+            for (Usage usage : usages)
+                if (usage.Uid >= 0 && !(usage.Uid == 0 && usage.Protocol == 17 && usage.DPort == 53)) {
                     String dname = dh.getQName(usage.Uid, usage.DAddr);
                     Log.i(TAG, "Usage account " + usage + " dname=" + dname);
-                    dh.updateUsage(usage, dname);
+
+                    String daddr = (dname == null ? usage.DAddr : dname);
+                    String key = getAccessKey(usage.Uid, usage.Version, usage.Protocol, daddr, usage.DPort);
+                    Usage total = mapUsage.get(key);
+                    if (total == null) {
+                        total = new Usage();
+                        total.Version = usage.Version;
+                        total.Protocol = usage.Protocol;
+                        total.DAddr = daddr;
+                        total.DPort = usage.DPort;
+                        total.Uid = usage.Uid;
+                        mapUsage.put(key, total);
+                    }
+                    total.Time = usage.Time;
+                    total.Sent += usage.Sent;
+                    total.Received += usage.Received;
+                    total.Connections += usage.Connections;
                 }
-            }
+
+            if (mapUsage.size() > 0)
+                schedule();
         }
     }
 
@@ -885,8 +1122,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
 
         private void startStats() {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-            boolean enabled = (!stats && prefs.getBoolean("show_stats", false));
+            boolean enabled = (!stats && settings.show_stats);
             Log.i(TAG, "Stats start enabled=" + enabled);
             if (enabled) {
                 when = new Date().getTime();
@@ -916,12 +1152,12 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
         private void updateStats() {
             RemoteViews remoteViews = new RemoteViews(getPackageName(), R.layout.traffic);
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-            long frequency = Long.parseLong(prefs.getString("stats_frequency", "1000"));
-            long samples = Long.parseLong(prefs.getString("stats_samples", "90"));
-            boolean filter = prefs.getBoolean("filter", false);
-            boolean show_top = prefs.getBoolean("show_top", false);
-            int loglevel = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
+            Settings settings = ServiceSinkhole.this.settings;
+            long frequency = settings.stats_frequency;
+            long samples = settings.stats_samples;
+            boolean filter = settings.filter;
+            boolean show_top = settings.show_top;
+            int loglevel = settings.loglevel;
 
             // Schedule next update
             this.sendEmptyMessageDelayed(MSG_STATS_UPDATE, frequency);
@@ -1304,7 +1540,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                         if (ni != null && ni.isUp() && !ni.isLoopback() &&
                                 ni.getName() != null && !ni.getName().startsWith("tun"))
                             for (InterfaceAddress ia : ni.getInterfaceAddresses())
-                                if (ia.getAddress() instanceof Inet4Address) {
+                                if (ia.getAddress() instanceof Inet4Address ||
+                                        (ip6 && ia.getAddress() instanceof Inet6Address && !ia.getAddress().isLinkLocalAddress())) {
                                     IPUtil.CIDR local = new IPUtil.CIDR(ia.getAddress(), ia.getNetworkPrefixLength());
                                     Log.i(TAG, "Excluding " + ni.getName() + " " + local);
                                     listExclude.add(local);
@@ -1370,38 +1607,35 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             }
 
             // Broadcast
-            listExclude.add(new IPUtil.CIDR("224.0.0.0", 3));
-
-            Collections.sort(listExclude);
+            if (lan)
+                listExclude.add(new IPUtil.CIDR("255.255.255.255", 32));
 
             try {
-                InetAddress start = InetAddress.getByName("0.0.0.0");
-                for (IPUtil.CIDR exclude : listExclude) {
-                    Log.i(TAG, "Exclude " + exclude.getStart().getHostAddress() + "..." + exclude.getEnd().getHostAddress());
-                    for (IPUtil.CIDR include : IPUtil.toCIDR(start, IPUtil.minus1(exclude.getStart())))
-                        try {
-                            builder.addRoute(include.address, include.prefix);
-                        } catch (Throwable ex) {
-                            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                        }
-                    start = IPUtil.plus1(exclude.getEnd());
-                }
-                String end = (lan ? "255.255.255.254" : "255.255.255.255");
-                for (IPUtil.CIDR include : IPUtil.toCIDR("224.0.0.0", end))
+                for (IPUtil.CIDR include : IPUtil.toCIDR("0.0.0.0", "255.255.255.255", listExclude))
                     try {
                         builder.addRoute(include.address, include.prefix);
                     } catch (Throwable ex) {
                         Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                     }
+
+                Log.i(TAG, "IPv6=" + ip6);
+                if (ip6)
+                    for (IPUtil.CIDR include : IPUtil.toCIDR("2000::", "3fff:ffff:ffff:ffff:ffff:ffff:ffff:ffff", listExclude)) // unicast
+                        try {
+                            builder.addRoute(include.address, include.prefix);
+                        } catch (Throwable ex) {
+                            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                        }
             } catch (UnknownHostException ex) {
                 Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
-        } else
+        } else {
             builder.addRoute("0.0.0.0", 0);
 
-        Log.i(TAG, "IPv6=" + ip6);
-        if (ip6)
-            builder.addRoute("2000::", 3); // unicast
+            Log.i(TAG, "IPv6=" + ip6);
+            if (ip6)
+                builder.addRoute("2000::", 3); // unicast
+        }
 
         // MTU
         int mtu = jni_get_mtu();
@@ -1441,32 +1675,51 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         return builder;
     }
 
-    private void startNative(final ParcelFileDescriptor vpn, List<Rule> listAllowed, List<Rule> listRule) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-        boolean log = prefs.getBoolean("log", false);
-        boolean log_app = prefs.getBoolean("log_app", false);
-        boolean filter = prefs.getBoolean("filter", false);
+    private void startNative(final ParcelFileDescriptor vpn, AllowedSets sets, int state) {
+        prepareNative(sets, state);
+        runNative(vpn);
+    }
+
+    private void prepareNative(AllowedSets sets, int state) {
+        Settings settings = this.settings;
+        boolean log = settings.log;
+        boolean log_app = settings.log_app;
+        boolean filter = settings.filter;
 
-        Log.i(TAG, "Start native log=" + log + "/" + log_app + " filter=" + filter);
+        Log.i(TAG, "Prepare native log=" + log + "/" + log_app + " filter=" + filter);
 
         // Prepare rules
         if (filter) {
-            prepareUidAllowed(listAllowed, listRule);
+            prepareUidAllowed(sets.getUidAllowed(state), sets.uidKnown);
             prepareHostsBlocked();
-            prepareUidIPFilters(null);
-            prepareForwarding();
+
+            // A network state change without other changes only swaps the allowed apps
+            int generation = DatabaseHelper.getInstance(this).getFilterGeneration();
+            boolean purchased = IAB.isPurchased(ActivityPro.SKU_FILTER, this);
+            if (settings == last_filter_settings && generation == last_filter_generation &&
+                    purchased == last_filter_purchased && sets == last_sets &&
+                    (state & AllowedSets.LOCKDOWN) == (last_state & AllowedSets.LOCKDOWN))
+                Log.i(TAG, "Filters unchanged");
+            else {
+                prepareUidIPFilters();
+                prepareForwarding();
+                last_filter_settings = settings;
+                last_filter_generation = generation;
+                last_filter_purchased = purchased;
+            }
         } else {
+            last_filter_settings = null;
             lock.writeLock().lock();
-            mapUidAllowed.clear();
-            mapUidKnown.clear();
-            mapHostsBlocked.clear();
             mapUidIPFilters.clear();
-            mapForward.clear();
+            mapDomainRules.clear();
+            domainWildcards.clear();
+            rules = RuleSnapshot.EMPTY;
             lock.writeLock().unlock();
+            clearHostsBlocked();
         }
 
         if (log_app)
-            prepareNotify(listRule);
+            prepareNotify(sets.listRule);
         else {
             lock.writeLock().lock();
             mapNotify.clear();
@@ -1474,9 +1727,18 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             lock.writeLock().unlock();
         }
 
-        if (log || log_app || filter) {
-            int prio = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
-            final int rcode = Integer.parseInt(prefs.getString("rcode", "3"));
+        invalidateVerdicts();
+        jni_set_log(jni_context, log || log_app);
+    }
+
+    private void runNative(final ParcelFileDescriptor vpn) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
+        Settings settings = this.settings;
+
+        if (settings.log || settings.log_app || settings.filter) {
+            int prio = settings.loglevel;
+            final int rcode = settings.rcode;
+            final boolean async = settings.async_verdicts;
             if (prefs.getBoolean("socks5_enabled", false))
                 jni_socks5(
                         prefs.getString("socks5_addr", ""),
@@ -1488,13 +1750,14 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
             if (tunnelThread == null) {
                 Log.i(TAG, "Starting tunnel thread");
+                last_native = getNativeConfig();
                 jni_start(jni_context, prio);
 
                 tunnelThread = new Thread(new Runnable() {
                     @Override
                     public void run() {
                         Log.i(TAG, "Running tunnel");
-                        jni_run(jni_context, vpn.getFd(), mapForward.containsKey(53), rcode);
+                        jni_run(jni_context, vpn.getFd(), rules.isForwarded(53), rcode, async);
                         Log.i(TAG, "Tunnel exited");
                         tunnelThread = null;
                     }
@@ -1507,6 +1770,19 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
+    // Parameters which can only be changed by restarting the tunnel thread
+    private String getNativeConfig() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
+        Settings settings = this.settings;
+        return settings.loglevel + "/" + settings.rcode + "/" + settings.async_verdicts +
+                "/" + rules.isForwarded(53) +
+                "/" + prefs.getBoolean("socks5_enabled", false) +
+                "/" + prefs.getString("socks5_addr", "") +
+                "/" + prefs.getString("socks5_port", "0") +
+                "/" + prefs.getString("socks5_username", "") +
+                "/" + prefs.getString("socks5_password", "");
+    }
+
     private void stopNative(ParcelFileDescriptor vpn, boolean clear) {
         Log.i(TAG, "Stop native clear=" + clear);
 
@@ -1533,54 +1809,42 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private void unprepare() {
         lock.writeLock().lock();
-        mapUidAllowed.clear();
-        mapUidKnown.clear();
-        mapHostsBlocked.clear();
         mapUidIPFilters.clear();
-        mapForward.clear();
+        mapDomainRules.clear();
+        domainWildcards.clear();
+        rules = RuleSnapshot.EMPTY;
         mapNotify.clear();
         mapSecurityProblemNotify.clear();
         lock.writeLock().unlock();
+        clearHostsBlocked();
     }
 
-    private void prepareUidAllowed(List<Rule> listAllowed, List<Rule> listRule) {
+    private void prepareUidAllowed(SparseBooleanArray uidAllowed, SparseBooleanArray uidKnown) {
         lock.writeLock().lock();
-
-        mapUidAllowed.clear();
-        for (Rule rule : listAllowed)
-            mapUidAllowed.put(rule.uid, true);
-
-        mapUidKnown.clear();
-        for (Rule rule : listRule)
-            mapUidKnown.put(rule.uid, rule.uid);
-
+        rules = rules.withUids(true, uidAllowed, uidKnown);
         lock.writeLock().unlock();
     }
 
     private void prepareHostsBlocked() {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
         boolean use_hosts = prefs.getBoolean("filter", false) && prefs.getBoolean("use_hosts", false);
+        boolean subdomains = prefs.getBoolean("hosts_subdomains", false);
         File hosts = new File(getFilesDir(), "hosts.txt");
         if (!use_hosts || !hosts.exists() || !hosts.canRead()) {
             Log.i(TAG, "Hosts file use=" + use_hosts + " exists=" + hosts.exists());
-            lock.writeLock().lock();
-            mapHostsBlocked.clear();
-            lock.writeLock().unlock();
+            clearHostsBlocked();
             return;
         }
 
-        boolean changed = (hosts.lastModified() != last_hosts_modified);
-        if (!changed && mapHostsBlocked.size() > 0) {
+        boolean changed = (hosts.lastModified() != last_hosts_modified || subdomains != last_hosts_subdomains);
+        if (!changed && hosts_blocked > 0) {
             Log.i(TAG, "Hosts file unchanged");
             return;
         }
         last_hosts_modified = hosts.lastModified();
+        last_hosts_subdomains = subdomains;
 
-        lock.writeLock().lock();
-
-        mapHostsBlocked.clear();
-
-        int count = 0;
+        List<String> listHosts = new ArrayList<>();
         BufferedReader br = null;
         try {
             br = new BufferedReader(new FileReader(hosts));
@@ -1592,15 +1856,14 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 line = line.trim();
                 if (line.length() > 0) {
                     String[] words = line.split("\\s+");
-                    if (words.length == 2) {
-                        count++;
-                        mapHostsBlocked.put(words[1], true);
-                    } else
+                    if (words.length == 2)
+                        listHosts.add(words[1]);
+                    else
                         Log.i(TAG, "Invalid hosts file line: " + line);
                 }
             }
-            mapHostsBlocked.put("test.netguard.me", true);
-            Log.i(TAG, count + " hosts read");
+            Log.i(TAG, listHosts.size() + " hosts read");
+            listHosts.add("test.netguard.me");
         } catch (IOException ex) {
             Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
         } finally {
@@ -1612,30 +1875,82 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 }
         }
 
-        lock.writeLock().unlock();
+        // Lookups are done in native code
+        jni_set_hosts(jni_context, listHosts.toArray(new String[0]), subdomains);
+        hosts_blocked = listHosts.size();
     }
 
-    private void prepareUidIPFilters(String dname) {
-        SharedPreferences lockdown = getSharedPreferences("lockdown", Context.MODE_PRIVATE);
+    private void clearHostsBlocked() {
+        jni_set_hosts(jni_context, new String[0], false);
+        hosts_blocked = 0;
+    }
+
+    private void prepareUidIPFilters() {
+        boolean lockeddown = isLockedDown(last_metered);
+        DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
+
+        // Packages allowed in lockdown mode
+        Set<String> lockdown = new HashSet<>();
+        if (lockeddown) {
+            Cursor cursor = dh.getRules();
+            while (cursor.moveToNext())
+                if ((cursor.getInt(1) & Rule.FLAG_LOCKDOWN) != 0)
+                    lockdown.add(cursor.getString(0));
+            cursor.close();
+        }
 
         lock.writeLock().lock();
 
-        if (dname == null) {
-            mapUidIPFilters.clear();
-            if (!IAB.isPurchased(ActivityPro.SKU_FILTER, ServiceSinkhole.this)) {
-                lock.writeLock().unlock();
-                return;
-            }
+        mapUidIPFilters.clear();
+        mapDomainRules.clear();
+        domainWildcards.clear();
+        if (!IAB.isPurchased(ActivityPro.SKU_FILTER, ServiceSinkhole.this)) {
+            rules = rules.withFilters(new LongSparseArray<RuleSnapshot.AddressFilter>())
+                    .withRanges(new SparseArray<RuleSnapshot.RangeFilter>());
+            lock.writeLock().unlock();
+            return;
         }
 
-        Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getAccessDns(dname);
+        // Index the rules by domain name for dnsResolved
+        Cursor cursor = dh.getAccessDomains();
         int colUid = cursor.getColumnIndex("uid");
         int colVersion = cursor.getColumnIndex("version");
         int colProtocol = cursor.getColumnIndex("protocol");
         int colDAddr = cursor.getColumnIndex("daddr");
-        int colResource = cursor.getColumnIndex("resource");
         int colDPort = cursor.getColumnIndex("dport");
         int colBlock = cursor.getColumnIndex("block");
+        while (cursor.moveToNext()) {
+            int uid = cursor.getInt(colUid);
+            if (isLockdownSkipped(lockeddown, lockdown, uid))
+                continue;
+
+            int protocol = cursor.getInt(colProtocol);
+            int dport = cursor.getInt(colDPort);
+            if (!(protocol == 6 /* TCP */ || protocol == 17 /* UDP */))
+                dport = 0;
+            long key = RuleSnapshot.key(cursor.getInt(colVersion), protocol, dport, uid);
+
+            String daddr = cursor.getString(colDAddr);
+            DomainRule rule = new DomainRule(key, cursor.getInt(colBlock) > 0);
+            if (daddr.startsWith("*."))
+                domainWildcards.add(daddr.substring(2), rule);
+            else {
+                if (!mapDomainRules.containsKey(daddr))
+                    mapDomainRules.put(daddr, new ArrayList<DomainRule>());
+                mapDomainRules.get(daddr).add(rule);
+            }
+        }
+        cursor.close();
+
+        // Addresses which were resolved before
+        cursor = dh.getAccessDns(null);
+        colUid = cursor.getColumnIndex("uid");
+        colVersion = cursor.getColumnIndex("version");
+        colProtocol = cursor.getColumnIndex("protocol");
+        colDAddr = cursor.getColumnIndex("daddr");
+        int colResource = cursor.getColumnIndex("resource");
+        colDPort = cursor.getColumnIndex("dport");
+        colBlock = cursor.getColumnIndex("block");
         int colTime = cursor.getColumnIndex("time");
         int colTTL = cursor.getColumnIndex("ttl");
         while (cursor.moveToNext()) {
@@ -1649,58 +1964,158 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             long time = cursor.getLong(colTime);
             long ttl = cursor.getLong(colTTL);
 
-            if (isLockedDown(last_metered)) {
-                String[] pkg = getPackageManager().getPackagesForUid(uid);
-                if (pkg != null && pkg.length > 0) {
-                    if (!lockdown.getBoolean(pkg[0], false))
-                        continue;
-                }
-            }
+            if (isLockdownSkipped(lockeddown, lockdown, uid))
+                continue;
 
-            // long is 64 bits
-            // 0..15 uid
-            // 16..31 dport
-            // 32..39 protocol
-            // 40..43 version
             if (!(protocol == 6 /* TCP */ || protocol == 17 /* UDP */))
                 dport = 0;
-            long key = (version << 40) | (protocol << 32) | (dport << 16) | uid;
+            long key = RuleSnapshot.key(version, protocol, dport, uid);
 
-            synchronized (mapUidIPFilters) {
-                if (!mapUidIPFilters.containsKey(key))
-                    mapUidIPFilters.put(key, new HashMap());
+            String name = (dresource == null ? daddr : dresource);
+            addIPFilter(key, name, block, time + ttl);
+        }
+        cursor.close();
 
-                try {
-                    if (dname != null)
-                        Log.i(TAG, "Set filter uid=" + uid + " " + daddr + " " + dresource + "/" + dport + "=" + block);
-                    String name = (dresource == null ? daddr : dresource);
-                    if (Util.isNumericAddress(name)) {
-                        InetAddress iname = InetAddress.getByName(name);
-                        boolean exists = mapUidIPFilters.get(key).containsKey(iname);
-                        if (!exists || !mapUidIPFilters.get(key).get(iname).isBlocked()) {
-                            IPRule rule = new IPRule(block, time + ttl);
-                            mapUidIPFilters.get(key).put(iname, rule);
-                            if (exists)
-                                Log.w(TAG, "Address conflict uid=" + uid + " " + daddr + " " + dresource + "/" + dport);
-                        } else if (exists) {
-                            mapUidIPFilters.get(key).get(iname).updateExpires(time + ttl);
-                            Log.w(TAG, "Address updated uid=" + uid + " " + daddr + " " + dresource + "/" + dport);
-                        }
-                    } else
-                        Log.w(TAG, "Address not numeric " + name);
-                } catch (UnknownHostException ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                }
+        // Addresses of names matching a wildcard which were resolved before
+        if (!domainWildcards.isEmpty()) {
+            long now = new Date().getTime();
+            cursor = dh.getDns();
+            int colQName = cursor.getColumnIndex("qname");
+            colResource = cursor.getColumnIndex("resource");
+            colTime = cursor.getColumnIndex("time");
+            colTTL = cursor.getColumnIndex("ttl");
+            while (cursor.moveToNext()) {
+                long expires = cursor.getLong(colTime) + cursor.getLong(colTTL);
+                if (expires < now)
+                    continue;
+
+                String resource = cursor.getString(colResource);
+                for (DomainRule rule : getWildcardRules(cursor.getString(colQName)))
+                    addIPFilter(rule.key, resource, rule.block, expires);
+            }
+            cursor.close();
+        }
+
+        // Addresses which were resolved but aren't in the database yet
+        for (ResourceRecord rr : listDnsPending)
+            addDnsFilters(rr);
+
+        LongSparseArray<RuleSnapshot.AddressFilter> ipFilters = new LongSparseArray<>();
+        for (long key : mapUidIPFilters.keySet())
+            ipFilters.put(key, buildIPFilter(key));
+
+        // Address ranges
+        SparseArray<RuleSnapshot.RangeFilter.Builder> mapBuilder = new SparseArray<>();
+        cursor = dh.getCidr();
+        colUid = cursor.getColumnIndex("uid");
+        int colAddress = cursor.getColumnIndex("address");
+        int colPrefix = cursor.getColumnIndex("prefix");
+        colBlock = cursor.getColumnIndex("block");
+        while (cursor.moveToNext()) {
+            int uid = cursor.getInt(colUid);
+            if (isLockdownSkipped(lockeddown, lockdown, uid))
+                continue;
+
+            String address = cursor.getString(colAddress);
+            if (!Util.isNumericAddress(address)) {
+                Log.w(TAG, "Range not numeric " + address);
+                continue;
             }
+
+            RuleSnapshot.RangeFilter.Builder builder = mapBuilder.get(uid);
+            if (builder == null) {
+                builder = new RuleSnapshot.RangeFilter.Builder();
+                mapBuilder.put(uid, builder);
+            }
+            builder.add(new IPUtil.CIDR(address, cursor.getInt(colPrefix)), cursor.getInt(colBlock) > 0);
         }
         cursor.close();
 
+        SparseArray<RuleSnapshot.RangeFilter> ranges = new SparseArray<>();
+        for (int i = 0; i < mapBuilder.size(); i++)
+            ranges.put(mapBuilder.keyAt(i), mapBuilder.valueAt(i).build());
+        Log.i(TAG, "Ranges uids=" + ranges.size());
+
+        rules = rules.withFilters(ipFilters).withRanges(ranges);
+
         lock.writeLock().unlock();
     }
 
+    // Wildcard rules of keys without a rule for the exact name, the most specific first
+    private List<DomainRule> getWildcardRules(String qname) {
+        List<DomainRule> listWildcard = domainWildcards.match(qname);
+        if (listWildcard.isEmpty())
+            return listWildcard;
+
+        Set<Long> keys = new HashSet<>();
+        List<DomainRule> listExact = mapDomainRules.get(qname);
+        if (listExact != null)
+            for (DomainRule rule : listExact)
+                keys.add(rule.key);
+
+        List<DomainRule> listRule = new ArrayList<>();
+        for (DomainRule rule : listWildcard)
+            if (keys.add(rule.key))
+                listRule.add(rule);
+        return listRule;
+    }
+
+    private boolean isLockdownSkipped(boolean lockeddown, Set<String> lockdown, int uid) {
+        if (lockeddown) {
+            String[] pkg = getPackageManager().getPackagesForUid(uid);
+            if (pkg != null && pkg.length > 0)
+                return !lockdown.contains(pkg[0]);
+        }
+        return false;
+    }
+
+    // Returns true if the filter changed
+    private boolean addIPFilter(long key, String name, boolean block, long expires) {
+        if (!Util.isNumericAddress(name)) {
+            Log.w(TAG, "Address not numeric " + name);
+            return false;
+        }
+
+        if (!mapUidIPFilters.containsKey(key))
+            mapUidIPFilters.put(key, new HashMap<InetAddress, IPRule>());
+        Map<InetAddress, IPRule> map = mapUidIPFilters.get(key);
+
+        try {
+            InetAddress iname = InetAddress.getByName(name);
+            IPRule rule = map.get(iname);
+            if (rule == null || !rule.isBlocked()) {
+                if (rule != null && rule.isBlocked() == block && rule.getExpires() >= expires)
+                    return false;
+                map.put(iname, new IPRule(block, expires));
+                if (rule != null && rule.isBlocked() != block)
+                    Log.w(TAG, "Address conflict key=" + key + " " + name);
+            } else {
+                if (rule.getExpires() >= expires)
+                    return false;
+                rule.updateExpires(expires);
+                Log.w(TAG, "Address updated key=" + key + " " + name);
+            }
+            return true;
+        } catch (UnknownHostException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return false;
+        }
+    }
+
+    private RuleSnapshot.AddressFilter buildIPFilter(long key) {
+        RuleSnapshot.AddressFilter.Builder builder = new RuleSnapshot.AddressFilter.Builder();
+        for (Map.Entry<InetAddress, IPRule> entry : mapUidIPFilters.get(key).entrySet())
+            builder.add(entry.getKey().getHostAddress(), entry.getValue().isBlocked(), entry.getValue().getExpires());
+        return builder.build();
+    }
+
+    private void invalidateVerdicts() {
+        // Native code caches verdicts of isAddressAllowed until the generation changes
+        jni_set_generation(jni_context, verdict_generation.incrementAndGet());
+    }
+
     private void prepareForwarding() {
-        lock.writeLock().lock();
-        mapForward.clear();
+        SparseArray<RuleSnapshot.Redirect> forward = new SparseArray<>();
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         if (prefs.getBoolean("filter", false)) {
@@ -1717,20 +2132,23 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 fwd.raddr = cursor.getString(colRAddr);
                 fwd.rport = cursor.getInt(colRPort);
                 fwd.ruid = cursor.getInt(colRUid);
-                mapForward.put(fwd.dport, fwd);
+                forward.put(fwd.dport, new RuleSnapshot.Redirect(fwd));
                 Log.i(TAG, "Forward " + fwd);
             }
             cursor.close();
         }
+
+        lock.writeLock().lock();
+        rules = rules.withForwarding(forward);
         lock.writeLock().unlock();
     }
 
     private void prepareNotify(List<Rule> listRule) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        boolean notify = prefs.getBoolean("notify_access", false);
-        boolean system = prefs.getBoolean("manage_system", false);
-        boolean security = prefs.getBoolean("security", false);
-        boolean securityProblemNotify = prefs.getBoolean("notify_security_problem", false);
+        Settings settings = this.settings;
+        boolean notify = settings.notify_access;
+        boolean system = settings.manage_system;
+        boolean security = settings.security;
+        boolean securityProblemNotify = settings.notify_security_problem;
 
         lock.writeLock().lock();
         mapNotify.clear();
@@ -1753,8 +2171,24 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         return lockdown;
     }
 
-    private List<Rule> getAllowedRules(List<Rule> listRule) {
-        List<Rule> listAllowed = new ArrayList<>();
+    private AllowedSets getAllowedSets() {
+        long generation = Rule.getGeneration(ServiceSinkhole.this);
+        if (last_sets != null && last_sets.generation == generation)
+            return last_sets;
+        long start = SystemClock.elapsedRealtime();
+        AllowedSets sets = new AllowedSets(generation, Rule.getRules(true, ServiceSinkhole.this));
+        Log.i(TAG, "Allowed sets rules=" + sets.listRule.size() +
+                " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms");
+        return sets;
+    }
+
+    private List<Rule> getAllowedRules(AllowedSets sets, int state) {
+        List<Rule> listAllowed = sets.getAllowed(state);
+        Log.i(TAG, "Allowed " + listAllowed.size() + " of " + sets.listRule.size() + " state=" + state);
+        return listAllowed;
+    }
+
+    private int getNetworkState() {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
         // Check state
@@ -1816,18 +2250,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 " filter=" + filter +
                 " lockdown=" + lockdown);
 
-        if (last_connected)
-            for (Rule rule : listRule) {
-                boolean blocked = (metered ? rule.other_blocked : rule.wifi_blocked);
-                boolean screen = (metered ? rule.screen_other : rule.screen_wifi);
-                if ((!blocked || (screen && last_interactive)) &&
-                        (!metered || !(rule.roaming && roaming)) &&
-                        (!lockdown || rule.lockdown))
-                    listAllowed.add(rule);
-            }
-
-        Log.i(TAG, "Allowed " + listAllowed.size() + " of " + listRule.size());
-        return listAllowed;
+        return AllowedSets.getState(last_connected, metered, roaming, last_interactive, lockdown);
     }
 
     private void stopVPN(ParcelFileDescriptor pfd) {
@@ -1858,10 +2281,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     }
 
     // Called from native code
-    private void logPacket(Packet packet) {
+    private void logRecords() {
         Message msg = logHandler.obtainMessage();
-        msg.obj = packet;
-        msg.what = MSG_PACKET;
+        msg.what = MSG_RECORDS;
         msg.arg1 = (last_connected ? (last_metered ? 2 : 1) : 0);
         msg.arg2 = (last_interactive ? 1 : 0);
         logHandler.sendMessage(msg);
@@ -1878,20 +2300,50 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         logHandler.sendMessage(msg);
     }
 
+    // Returns the keys of the changed filters
+    private List<Long> addDnsFilters(ResourceRecord rr) {
+        List<Long> listKey = new ArrayList<>();
+
+        List<DomainRule> listRule = new ArrayList<>();
+        if (mapDomainRules.containsKey(rr.QName))
+            listRule.addAll(mapDomainRules.get(rr.QName));
+        listRule.addAll(getWildcardRules(rr.QName));
+        if (listRule.isEmpty())
+            return listKey;
+
+        int ttl = Math.max(rr.TTL, settings.ttl);
+        long expires = rr.Time + ttl * 1000L;
+        for (DomainRule rule : listRule)
+            if (addIPFilter(rule.key, rr.Resource, rule.block, expires)) {
+                Log.i(TAG, "Set filter key=" + rule.key + " " + rr.QName + " " + rr.Resource + "=" + rule.block);
+                listKey.add(rule.key);
+            }
+        return listKey;
+    }
+
     // Called from native code
     private void dnsResolved(ResourceRecord rr) {
-        if (DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(rr)) {
-            Log.i(TAG, "New IP " + rr);
-            prepareUidIPFilters(rr.QName);
+        // Filter new addresses right away, the database is updated in the background
+        boolean changed = false;
+        lock.writeLock().lock();
+        listDnsPending.add(rr);
+        List<Long> listKey = addDnsFilters(rr);
+        if (!listKey.isEmpty()) {
+            LongSparseArray<RuleSnapshot.AddressFilter> ipFilters = rules.getFilters().clone();
+            for (long key : listKey)
+                ipFilters.put(key, buildIPFilter(key));
+            rules = rules.withFilters(ipFilters);
+            changed = true;
         }
-    }
+        lock.writeLock().unlock();
 
-    // Called from native code
-    private boolean isDomainBlocked(String name) {
-        lock.readLock().lock();
-        boolean blocked = (mapHostsBlocked.containsKey(name) && mapHostsBlocked.get(name));
-        lock.readLock().unlock();
-        return blocked;
+        if (changed)
+            invalidateVerdicts();
+
+        Message msg = logHandler.obtainMessage();
+        msg.obj = rr;
+        msg.what = MSG_DNS;
+        logHandler.sendMessage(msg);
     }
 
     private boolean isSupported(int protocol) {
@@ -1903,12 +2355,11 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     // Called from native code
     private Allowed isAddressAllowed(Packet packet) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-
-        lock.readLock().lock();
+        // Lock-free, the prepare methods publish a new snapshot instead of changing this one
+        RuleSnapshot rules = this.rules;
 
         packet.allowed = false;
-        if (prefs.getBoolean("filter", false)) {
+        if (rules.filter) {
             // https://android.googlesource.com/platform/system/core/+/master/include/private/android_filesystem_config.h
             if (packet.uid < 2000 &&
                     !last_connected && isSupported(packet.protocol)) {
@@ -1917,7 +2368,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 Log.w(TAG, "Allowing disconnected system " + packet);
 
             } else if (packet.uid < 2000 &&
-                    !mapUidKnown.containsKey(packet.uid) && isSupported(packet.protocol)) {
+                    !rules.isKnown(packet.uid) && isSupported(packet.protocol)) {
                 // Allow unknown system traffic
                 packet.allowed = true;
                 Log.w(TAG, "Allowing unknown system " + packet);
@@ -1929,60 +2380,47 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 boolean filtered = false;
                 // Only TCP (6) and UDP (17) have port numbers
                 int dport = (packet.protocol == 6 || packet.protocol == 17 ? packet.dport : 0);
-                long key = (packet.version << 40) | (packet.protocol << 32) | (dport << 16) | packet.uid;
+                long key = RuleSnapshot.key(packet.version, packet.protocol, dport, packet.uid);
+
+                RuleSnapshot.AddressFilter filter = rules.getFilter(key);
+                RuleSnapshot.RangeFilter range = rules.getRange(packet.uid);
+                if (filter != null || range != null) {
+                    long high = IPUtil.addr2high(packet.daddr);
+                    long low = IPUtil.addr2low(packet.daddr);
+
+                    if (filter != null) {
+                        int verdict = filter.check(high, low, System.currentTimeMillis());
+                        if (verdict == RuleSnapshot.EXPIRED)
+                            Log.i(TAG, "DNS expired " + packet);
+                        else if (verdict != RuleSnapshot.NONE) {
+                            filtered = true;
+                            packet.allowed = (verdict == RuleSnapshot.ALLOWED);
+                        }
+                    }
 
-                if (mapUidIPFilters.containsKey(key))
-                    try {
-                        InetAddress iaddr = InetAddress.getByName(packet.daddr);
-                        Map<InetAddress, IPRule> map = mapUidIPFilters.get(key);
-                        if (map != null && map.containsKey(iaddr)) {
-                            IPRule rule = map.get(iaddr);
-                            if (rule.isExpired())
-                                Log.i(TAG, "DNS expired " + packet);
-                            else {
-                                filtered = true;
-                                packet.allowed = !rule.isBlocked();
-                                Log.i(TAG, "Filtering " + packet);
-                            }
+                    // Address rules are more specific than ranges
+                    if (!filtered && range != null) {
+                        int verdict = range.check(packet.version, high, low);
+                        if (verdict != RuleSnapshot.NONE) {
+                            filtered = true;
+                            packet.allowed = (verdict == RuleSnapshot.ALLOWED);
                         }
-                    } catch (UnknownHostException ex) {
-                        Log.w(TAG, "Allowed " + ex.toString() + "\n" + Log.getStackTraceString(ex));
                     }
+                }
 
                 if (!filtered)
-                    if (mapUidAllowed.containsKey(packet.uid))
-                        packet.allowed = mapUidAllowed.get(packet.uid);
+                    if (rules.isKnown(packet.uid))
+                        packet.allowed = rules.isAllowed(packet.uid);
                     else
                         Log.w(TAG, "No rules for " + packet);
             }
         }
 
-        Allowed allowed = null;
-        if (packet.allowed) {
-            if (mapForward.containsKey(packet.dport)) {
-                Forward fwd = mapForward.get(packet.dport);
-                if (fwd.ruid == packet.uid) {
-                    allowed = new Allowed();
-                } else {
-                    allowed = new Allowed(fwd.raddr, fwd.rport);
-                    packet.data = "> " + fwd.raddr + "/" + fwd.rport;
-                }
-            } else
-                allowed = new Allowed();
-        }
-
-        lock.readLock().unlock();
-
-        if (prefs.getBoolean("log", false) || prefs.getBoolean("log_app", false))
-            if (packet.protocol != 6 /* TCP */ || !"".equals(packet.flags))
-                if (packet.uid != Process.myUid())
-                    logPacket(packet);
-
-        return allowed;
+        return (packet.allowed ? rules.getAllowed(packet) : null);
     }
 
     // Called from native code
-    private void accountUsage(Usage usage) {
+    private void accountUsage(Usage[] usage) {
         Message msg = logHandler.obtainMessage();
         msg.obj = usage;
         msg.what = MSG_USAGE;
@@ -2268,15 +2706,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                         // Remove settings
                         String packageName = intent.getData().getSchemeSpecificPart();
                         Log.i(TAG, "Deleting settings package=" + packageName);
-                        context.getSharedPreferences("wifi", Context.MODE_PRIVATE).edit().remove(packageName).apply();
-                        context.getSharedPreferences("other", Context.MODE_PRIVATE).edit().remove(packageName).apply();
-                        context.getSharedPreferences("screen_wifi", Context.MODE_PRIVATE).edit().remove(packageName).apply();
-                        context.getSharedPreferences("screen_other", Context.MODE_PRIVATE).edit().remove(packageName).apply();
-                        context.getSharedPreferences("roaming", Context.MODE_PRIVATE).edit().remove(packageName).apply();
-                        context.getSharedPreferences("lockdown", Context.MODE_PRIVATE).edit().remove(packageName).apply();
-                        context.getSharedPreferences("apply", Context.MODE_PRIVATE).edit().remove(packageName).apply();
-                        context.getSharedPreferences("notify", Context.MODE_PRIVATE).edit().remove(packageName).apply();
-                        context.getSharedPreferences("notify_security_problem", Context.MODE_PRIVATE).edit().remove(packageName).apply();
+                        DatabaseHelper.getInstance(context).clearRule(packageName);
 
                         int uid = intent.getIntExtra(Intent.EXTRA_UID, 0);
                         if (uid > 0) {
@@ -2339,10 +2769,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                         .setVisibility(NotificationCompat.VISIBILITY_SECRET);
 
             // Get defaults
-            SharedPreferences prefs_wifi = getSharedPreferences("wifi", Context.MODE_PRIVATE);
-            SharedPreferences prefs_other = getSharedPreferences("other", Context.MODE_PRIVATE);
-            boolean wifi = prefs_wifi.getBoolean(packages[0], prefs.getBoolean("whitelist_wifi", true));
-            boolean other = prefs_other.getBoolean(packages[0], prefs.getBoolean("whitelist_other", true));
+            long flags = DatabaseHelper.getInstance(this).getRule(packages[0]);
+            boolean wifi = Rule.getFlag(flags, Rule.FLAG_WIFI, prefs.getBoolean("whitelist_wifi", true));
+            boolean other = Rule.getFlag(flags, Rule.FLAG_OTHER, prefs.getBoolean("whitelist_other", true));
 
             // Build Wi-Fi action
             Intent riWifi = new Intent(this, ServiceSinkhole.class);
@@ -2401,9 +2830,11 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
         // Native init
         jni_context = jni_init(Build.VERSION.SDK_INT);
+        log_ring = jni_get_log(jni_context).order(ByteOrder.nativeOrder());
         boolean pcap = prefs.getBoolean("pcap", false);
         setPcap(pcap, this);
 
+        settings = new Settings(prefs);
         prefs.registerOnSharedPreferenceChangeListener(this);
 
         Util.setTheme(this);
@@ -2560,6 +2991,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences prefs, String name) {
+        settings = new Settings(prefs);
+
         if ("theme".equals(name)) {
             Log.i(TAG, "Theme changed");
             Util.setTheme(this);
@@ -2639,11 +3072,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         boolean default_other = settings.getBoolean("whitelist_other", true);
 
         // Update setting
-        SharedPreferences prefs = getSharedPreferences(network, Context.MODE_PRIVATE);
-        if (blocked == ("wifi".equals(network) ? default_wifi : default_other))
-            prefs.edit().remove(pkg).apply();
-        else
-            prefs.edit().putBoolean(pkg, blocked).apply();
+        int flag = ("wifi".equals(network) ? Rule.FLAG_WIFI : Rule.FLAG_OTHER);
+        boolean def = ("wifi".equals(network) ? default_wifi : default_other);
+        DatabaseHelper.getInstance(ServiceSinkhole.this).setRuleFlag(pkg, flag, blocked == def ? null : blocked);
 
         // Apply rules
         ServiceSinkhole.reload("notification", ServiceSinkhole.this, false);
@@ -2676,7 +3107,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         synchronized (this) {
             Log.i(TAG, "Destroy");
             commandLooper.quit();
-            logLooper.quit();
+            logHandler.sendEmptyMessage(MSG_FLUSH);
+            logLooper.quitSafely();
             statsLooper.quit();
 
             for (Command command : Command.values())
@@ -2741,6 +3173,15 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
 
+            // The log thread drains the native log ring, which is freed together with the context
+            // Native code is stopped, so no new records can be queued
+            try {
+                logLooper.getThread().join();
+            } catch (InterruptedException ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+            log_ring = null;
+
             jni_done(jni_context);
 
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
@@ -2815,7 +3256,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private void updateEnforcingNotification(int allowed, int total) {
         // Update notification
-        Notification notification = getEnforcingNotification(allowed, total - allowed, mapHostsBlocked.size());
+        Notification notification = getEnforcingNotification(allowed, total - allowed, hosts_blocked);
         NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         nm.notify(NOTIFY_ENFORCING, notification);
     }
@@ -3157,6 +3598,13 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             return this;
         }
 
+        @Override
+        public Builder addRoute(InetAddress address, int prefixLength) {
+            listRoute.add(address.getHostAddress() + "/" + prefixLength);
+            super.addRoute(address, prefixLength);
+            return this;
+        }
+
         @Override
         public Builder addDnsServer(InetAddress address) {
             listDns.add(address);
@@ -3217,6 +3665,86 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
+    // Allowed rules for every combination of network states, built when the rules change
+    // A network state change only needs to select one of the sets
+    private static class AllowedSets {
+        private static final int STATES = 32;
+        private static final int LOCKDOWN = 8;
+
+        private final long generation;
+        private final List<Rule> listRule;
+        private final SparseBooleanArray uidKnown;
+        private final List<List<Rule>> listAllowed = new ArrayList<>(STATES);
+        private final List<SparseBooleanArray> listUidAllowed = new ArrayList<>(STATES);
+
+        AllowedSets(long generation, List<Rule> listRule) {
+            this.generation = generation;
+            this.listRule = listRule;
+
+            this.uidKnown = new SparseBooleanArray(listRule.size());
+            for (Rule rule : listRule)
+                this.uidKnown.put(rule.uid, true);
+
+            List<Rule> listNone = new ArrayList<>();
+            SparseBooleanArray uidNone = new SparseBooleanArray();
+            for (int state = 0; state < STATES; state++) {
+                boolean connected = ((state & 16) != 0);
+                boolean metered = ((state & 1) != 0);
+                boolean roaming = ((state & 2) != 0);
+                boolean interactive = ((state & 4) != 0);
+                boolean lockdown = ((state & LOCKDOWN) != 0);
+
+                List<Rule> allowed = new ArrayList<>();
+                if (connected)
+                    for (Rule rule : listRule) {
+                        boolean blocked = (metered ? rule.other_blocked : rule.wifi_blocked);
+                        boolean screen = (metered ? rule.screen_other : rule.screen_wifi);
+                        if ((!blocked || (screen && interactive)) &&
+                                (!metered || !(rule.roaming && roaming)) &&
+                                (!lockdown || rule.lockdown))
+                            allowed.add(rule);
+                    }
+
+                // Share the set of the non interactive state if the screen makes no difference
+                if (!connected) {
+                    listAllowed.add(listNone);
+                    listUidAllowed.add(uidNone);
+                } else if (interactive && allowed.equals(listAllowed.get(state & ~4))) {
+                    listAllowed.add(listAllowed.get(state & ~4));
+                    listUidAllowed.add(listUidAllowed.get(state & ~4));
+                } else {
+                    SparseBooleanArray uidAllowed = new SparseBooleanArray(allowed.size());
+                    for (Rule rule : allowed)
+                        uidAllowed.put(rule.uid, true);
+                    listAllowed.add(allowed);
+                    listUidAllowed.add(uidAllowed);
+                }
+            }
+        }
+
+        static int getState(boolean connected, boolean metered, boolean roaming, boolean interactive, boolean lockdown) {
+            return (connected ? 16 : 0) | (lockdown ? 8 : 0) | (interactive ? 4 : 0) | (roaming ? 2 : 0) | (metered ? 1 : 0);
+        }
+
+        List<Rule> getAllowed(int state) {
+            return listAllowed.get(state);
+        }
+
+        SparseBooleanArray getUidAllowed(int state) {
+            return listUidAllowed.get(state);
+        }
+    }
+
+    private class DomainRule {
+        private final long key;
+        private final boolean block;
+
+        public DomainRule(long key, boolean block) {
+            this.key = key;
+            this.block = block;
+        }
+    }
+
     private class IPRule {
         private boolean block;
         private long expires;
@@ -3234,6 +3762,10 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             return System.currentTimeMillis() > this.expires;
         }
 
+        public long getExpires() {
+            return this.expires;
+        }
+
         public void updateExpires(long expires) {
             this.expires = Math.max(this.expires, expires);
         }
@@ -3245,6 +3777,45 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
+    // Settings used while processing traffic, rebuilt when a preference changes
+    private static class Settings {
+        private final boolean filter;
+        private final boolean log;
+        private final boolean log_app;
+        private final boolean track_usage;
+        private final boolean security;
+        private final boolean manage_system;
+        private final boolean notify_access;
+        private final boolean notify_security_problem;
+        private final boolean async_verdicts;
+        private final int rcode;
+        private final int loglevel;
+        private final boolean show_stats;
+        private final boolean show_top;
+        private final long stats_frequency;
+        private final long stats_samples;
+        private final int ttl;
+
+        public Settings(SharedPreferences prefs) {
+            this.filter = prefs.getBoolean("filter", false);
+            this.log = prefs.getBoolean("log", false);
+            this.log_app = prefs.getBoolean("log_app", false);
+            this.track_usage = prefs.getBoolean("track_usage", false);
+            this.security = prefs.getBoolean("security", false);
+            this.manage_system = prefs.getBoolean("manage_system", false);
+            this.notify_access = prefs.getBoolean("notify_access", false);
+            this.notify_security_problem = prefs.getBoolean("notify_security_problem", false);
+            this.async_verdicts = prefs.getBoolean("async_verdicts", false);
+            this.rcode = Integer.parseInt(prefs.getString("rcode", "3"));
+            this.loglevel = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
+            this.show_stats = prefs.getBoolean("show_stats", false);
+            this.show_top = prefs.getBoolean("show_top", false);
+            this.stats_frequency = Long.parseLong(prefs.getString("stats_frequency", "1000"));
+            this.stats_samples = Long.parseLong(prefs.getString("stats_samples", "90"));
+            this.ttl = Integer.parseInt(prefs.getString("ttl", "259200"));
+        }
+    }
+
     public static void run(String reason, Context context) {
         Intent intent = new Intent(context, ServiceSinkhole.class);
         intent.putExtra(EXTRA_COMMAND, Command.run);
@@ -32,6 +32,7 @@ public class Usage {
     public int Uid;
     public long Sent;
     public long Received;
+    public int Connections;
 
     private static DateFormat formatter = SimpleDateFormat.getDateTimeInstance();
 
@@ -41,6 +42,7 @@ public class Usage {
                 " v" + Version + " p" + Protocol +
                 " " + DAddr + "/" + DPort +
                 " uid " + Uid +
-                " out " + Sent + " in " + Received;
+                " out " + Sent + " in " + Received +
+                " connections " + Connections;
     }
 }
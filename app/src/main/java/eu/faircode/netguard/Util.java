@@ -127,6 +127,11 @@ public class Util {
             "GB" // United Kingdom
     );
 
+    // Second level labels under which country code registries assign names, like co.uk or com.au
+    private static final List<String> listSecondLevel = Arrays.asList(
+            "ac", "co", "com", "edu", "go", "gob", "gov", "ltd", "mil", "ne", "net", "nic", "or", "org", "plc", "sch"
+    );
+
     private static native String jni_getprop(String name);
 
     private static native boolean is_numeric_address(String ip);
@@ -298,6 +303,14 @@ public class Util {
         return is_numeric_address(ip);
     }
 
+    // Approximation of the public suffix list, without bundling the list itself
+    public static boolean isPublicSuffix(String domain) {
+        String[] labels = domain.toLowerCase().split("\\.");
+        if (labels.length < 2)
+            return true;
+        return (labels.length == 2 && labels[1].length() == 2 && listSecondLevel.contains(labels[0]));
+    }
+
     public static boolean isInteractive(Context context) {
         PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT_WATCH)
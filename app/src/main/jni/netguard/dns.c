@@ -175,11 +175,9 @@ void parse_dns_response(const struct arguments *args, const struct udp_session *
             // Log qname
             char name[DNS_QNAME_MAX + 40 + 1];
             sprintf(name, "qtype %d qname %s rcode %d", qtype, qname, dns->rcode);
-            jobject objPacket = create_packet(
-                    args, u->version, IPPROTO_UDP, "",
-                    source, ntohs(u->source), dest, ntohs(u->dest),
-                    name, 0, 0);
-            log_packet(args, objPacket);
+            log_record(args, u->version, IPPROTO_UDP, "",
+                       source, ntohs(u->source), dest, ntohs(u->dest),
+                       name, 0, 0);
         }
     } else if (acount > 0)
         log_android(ANDROID_LOG_WARN,
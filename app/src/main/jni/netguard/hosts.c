@@ -0,0 +1,123 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Domain names are stored as 64 bit hashes only, lookups never call into Java
+
+static uint64_t hash_host(const char *name) {
+    // http://www.isthe.com/chongo/tech/comp/fnv/
+    uint64_t hash = 14695981039346656037ULL;
+    for (const char *p = name; *p; p++) {
+        hash ^= (uint8_t) tolower(*p);
+        hash *= 1099511628211ULL;
+    }
+    return (hash == 0 ? 1 : hash);
+}
+
+struct hosts *create_hosts(int count, int subdomains) {
+    uint32_t size = HOSTS_MIN;
+    while (size < (uint32_t) count * 2)
+        size <<= 1;
+
+    struct hosts *hosts = malloc(sizeof(struct hosts));
+    if (hosts == NULL) {
+        log_android(ANDROID_LOG_ERROR, "hosts malloc failed");
+        return NULL;
+    }
+
+    hosts->table = calloc(size, sizeof(uint64_t));
+    if (hosts->table == NULL) {
+        log_android(ANDROID_LOG_ERROR, "hosts calloc %u failed", size);
+        free(hosts);
+        return NULL;
+    }
+
+    hosts->mask = size - 1;
+    hosts->count = 0;
+    hosts->subdomains = subdomains;
+    return hosts;
+}
+
+static int find_host(const struct hosts *hosts, uint64_t hash) {
+    uint32_t i = (uint32_t) hash & hosts->mask;
+    while (hosts->table[i] != 0) {
+        if (hosts->table[i] == hash)
+            return 1;
+        i = (i + 1) & hosts->mask;
+    }
+    return 0;
+}
+
+void add_host(struct hosts *hosts, const char *name) {
+    uint64_t hash = hash_host(name);
+    if (hosts->count * 2 > hosts->mask || find_host(hosts, hash))
+        return;
+
+    uint32_t i = (uint32_t) hash & hosts->mask;
+    while (hosts->table[i] != 0)
+        i = (i + 1) & hosts->mask;
+    hosts->table[i] = hash;
+    hosts->count++;
+}
+
+void set_hosts(struct context *ctx, struct hosts *hosts) {
+    if (pthread_mutex_lock(&ctx->hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct hosts *old = ctx->hosts;
+    ctx->hosts = hosts;
+
+    if (pthread_mutex_unlock(&ctx->hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (old != NULL) {
+        free(old->table);
+        free(old);
+    }
+}
+
+jboolean is_domain_blocked(const struct arguments *args, const char *name) {
+    jboolean blocked = JNI_FALSE;
+
+    if (pthread_mutex_lock(&args->ctx->hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    const struct hosts *hosts = args->ctx->hosts;
+    if (hosts != NULL && hosts->count > 0) {
+        // Optionally match parent domains too: a.b.c, b.c, c
+        const char *p = name;
+        while (p != NULL && *p) {
+            if (find_host(hosts, hash_host(p))) {
+                blocked = JNI_TRUE;
+                break;
+            }
+            if (!hosts->subdomains)
+                break;
+            p = strchr(p, '.');
+            if (p != NULL)
+                p++;
+        }
+    }
+
+    if (pthread_mutex_unlock(&args->ctx->hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return blocked;
+}
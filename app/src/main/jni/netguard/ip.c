@@ -20,6 +20,7 @@
 #include "netguard.h"
 
 int max_tun_msg = 0;
+long long tun_read_time = 0;
 extern int loglevel;
 extern FILE *pcap_file;
 
@@ -53,43 +54,65 @@ int check_tun(const struct arguments *args,
 
     // Check tun read
     if (ev->events & EPOLLIN) {
-        uint8_t *buffer = malloc(get_mtu());
-        ssize_t length = read(args->tun, buffer, get_mtu());
-        if (length < 0) {
-            free(buffer);
+        if (args->ctx->tun_ring == NULL) {
+            log_android(ANDROID_LOG_ERROR, "tun %d no ring", args->tun);
+            report_exit(args, "tun %d no ring", args->tun);
+            return -1;
+        }
 
-            log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
-                        args->tun, errno, strerror(errno));
-            if (errno == EINTR || errno == EAGAIN)
-                // Retry later
-                return 0;
-            else {
-                report_exit(args, "tun %d read error %d: %s",
+        // Read a batch of packets into the ring
+        tun_read_time = get_ms();
+        size_t lengths[TUN_BATCH];
+        int count = 0;
+        int status = 0;
+        while (count < args->ctx->tun_batch && (count == 0 || is_readable(args->tun))) {
+            uint8_t *buffer = args->ctx->tun_ring + count * get_mtu();
+            ssize_t length = read(args->tun, buffer, get_mtu());
+            if (length < 0) {
+                log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
                             args->tun, errno, strerror(errno));
-                return -1;
-            }
-        } else if (length > 0) {
-            // Write pcap record
-            if (pcap_file != NULL)
-                write_pcap_rec(buffer, (size_t) length);
-
-            if (length > max_tun_msg) {
-                max_tun_msg = length;
-                log_android(ANDROID_LOG_WARN, "Maximum tun msg length %d", max_tun_msg);
+                if (errno == EINTR || errno == EAGAIN)
+                    // Retry later
+                    break;
+                else {
+                    report_exit(args, "tun %d read error %d: %s",
+                                args->tun, errno, strerror(errno));
+                    status = -1;
+                    break;
+                }
+            } else if (length > 0) {
+                // Write pcap record
+                if (pcap_file != NULL)
+                    write_pcap_rec(buffer, (size_t) length);
+
+                if (length > max_tun_msg) {
+                    max_tun_msg = length;
+                    log_android(ANDROID_LOG_WARN, "Maximum tun msg length %d", max_tun_msg);
+                }
+
+                lengths[count++] = (size_t) length;
+            } else {
+                // tun eof
+                log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
+                report_exit(args, "tun %d empty read", args->tun);
+                status = -1;
+                break;
             }
+        }
 
-            // Handle IP from tun
-            handle_ip(args, buffer, (size_t) length, epoll_fd, sessions, maxsessions);
-
-            free(buffer);
-        } else {
-            // tun eof
-            free(buffer);
+        // Handle IP from tun
+        for (int i = 0; i < count; i++)
+            handle_ip(args, args->ctx->tun_ring + i * get_mtu(), lengths[i],
+                      epoll_fd, sessions, maxsessions);
 
-            log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
-            report_exit(args, "tun %d empty read", args->tun);
-            return -1;
+        if (count > 0) {
+            args->ctx->tun_batches++;
+            args->ctx->tun_packets += count;
+            if (count > args->ctx->tun_batch_max)
+                args->ctx->tun_batch_max = count;
         }
+
+        return status;
     }
 
     return 0;
@@ -116,6 +139,30 @@ int is_upper_layer(int protocol) {
             protocol == IPPROTO_ICMPV6);
 }
 
+static void handle_allowed(const struct arguments *args,
+                           const uint8_t *pkt, size_t length, const uint8_t *payload,
+                           int version, int protocol, const char *dest, uint16_t dport, int syn,
+                           jint uid, int allowed, struct allowed *redirect,
+                           const int epoll_fd) {
+    // Handle allowed traffic
+    if (allowed) {
+        if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6)
+            handle_icmp(args, pkt, length, payload, uid, epoll_fd);
+        else if (protocol == IPPROTO_UDP)
+            handle_udp(args, pkt, length, payload, uid, redirect, epoll_fd);
+        else if (protocol == IPPROTO_TCP)
+            handle_tcp(args, pkt, length, payload, uid, allowed, redirect, epoll_fd);
+    } else {
+        if (protocol == IPPROTO_UDP)
+            block_udp(args, pkt, length, payload, uid);
+        if (protocol == IPPROTO_TCP)
+            handle_tcp(args, pkt, length, payload, uid, allowed, redirect, epoll_fd);
+
+        log_android(ANDROID_LOG_WARN, "Address v%d p%d %s/%u syn %d not allowed",
+                    version, protocol, dest, dport, syn);
+    }
+}
+
 void handle_ip(const struct arguments *args,
                const uint8_t *pkt, const size_t length,
                const int epoll_fd,
@@ -296,31 +343,87 @@ void handle_ip(const struct arguments *args,
     else if (protocol == IPPROTO_TCP && !syn)
         allowed = 1; // assume existing session
     else {
-        jobject objPacket = create_packet(
-                args, version, protocol, flags, source, sport, dest, dport, "", uid, 0);
-        redirect = is_address_allowed(args, objPacket);
+        struct verdict *verdict = find_verdict(args->ctx, version, protocol, daddr, dport, uid);
+        if (verdict != NULL)
+            redirect = (verdict->allowed ? &verdict->redirect : NULL);
+        else if (args->ctx->verdict_async) {
+            // The packet is resumed when the worker has the verdict
+            struct verdict_request *req =
+                    alloc_buffer(args->ctx, sizeof(struct verdict_request) + length);
+            if (req != NULL) {
+                req->generation = args->ctx->verdict_generation;
+                req->version = version;
+                req->protocol = protocol;
+                req->uid = uid;
+                req->syn = syn;
+                strcpy(req->flags, flags);
+                strcpy(req->source, source);
+                strcpy(req->dest, dest);
+                req->sport = sport;
+                req->dport = dport;
+                memset(req->daddr, 0, sizeof(req->daddr));
+                memcpy(req->daddr, daddr, version == 4 ? 4 : 16);
+                req->length = length;
+                req->offset = (size_t) (payload - pkt);
+                memcpy(req->pkt, pkt, length);
+                queue_verdict(args, req);
+            }
+            return;
+        } else {
+            long long start = get_ms();
+            int generation = args->ctx->verdict_generation;
+            jobject objPacket = create_packet(
+                    args, version, protocol, flags, source, sport, dest, dport, "", uid, 0);
+            redirect = is_address_allowed(args, objPacket);
+            put_verdict(args->ctx, generation, version, protocol, daddr, dport, uid, redirect);
+            account_stall(args->ctx, start);
+        }
+        log_verdict(args, version, protocol, flags, source, sport, dest, dport, uid, redirect);
         allowed = (redirect != NULL);
         if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
             redirect = NULL;
     }
 
-    // Handle allowed traffic
-    if (allowed) {
-        if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6)
-            handle_icmp(args, pkt, length, payload, uid, epoll_fd);
-        else if (protocol == IPPROTO_UDP)
-            handle_udp(args, pkt, length, payload, uid, redirect, epoll_fd);
-        else if (protocol == IPPROTO_TCP)
-            handle_tcp(args, pkt, length, payload, uid, allowed, redirect, epoll_fd);
-    } else {
-        if (protocol == IPPROTO_UDP)
-            block_udp(args, pkt, length, payload, uid);
-        if (protocol == IPPROTO_TCP)
-            handle_tcp(args, pkt, length, payload, uid, allowed, redirect, epoll_fd);
+    handle_allowed(args, pkt, length, payload,
+                   version, protocol, dest, dport, syn,
+                   uid, allowed, redirect, epoll_fd);
+}
 
-        log_android(ANDROID_LOG_WARN, "Address v%d p%d %s/%u syn %d not allowed",
-                    version, protocol, dest, dport, syn);
+void resume_ip(const struct arguments *args, struct verdict_request *req, const int epoll_fd,
+               int maxsessions) {
+    const uint8_t *payload = req->pkt + req->offset;
+    struct allowed *redirect = (req->allowed ? &req->redirect : NULL);
+
+    put_verdict(args->ctx, req->generation,
+                req->version, req->protocol, req->daddr, req->dport, req->uid, redirect);
+    log_verdict(args, req->version, req->protocol, req->flags,
+                req->source, req->sport, req->dest, req->dport, req->uid, redirect);
+
+    int allowed = (redirect != NULL);
+    if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
+        redirect = NULL;
+
+    if (req->protocol == IPPROTO_UDP && has_udp_session(args, req->pkt, payload)) {
+        // An earlier packet of the same flow created the session while waiting
+        allowed = 1;
+        redirect = NULL;
+    } else {
+        // Limit number of sessions, other sessions could have been created while waiting
+        int sessions = args->ctx->isessions + args->ctx->usessions + args->ctx->tsessions;
+        if (sessions >= maxsessions &&
+            (req->protocol == IPPROTO_ICMP || req->protocol == IPPROTO_ICMPV6 ||
+             req->protocol == IPPROTO_UDP ||
+             (req->protocol == IPPROTO_TCP && req->syn))) {
+            log_android(ANDROID_LOG_ERROR,
+                        "%d of max %d sessions, dropping resumed version %d protocol %d",
+                        sessions, maxsessions, req->version, req->protocol);
+            return;
+        }
     }
+
+    handle_allowed(args, req->pkt, req->length, payload,
+                   req->version, req->protocol, req->dest, req->dport, req->syn,
+                   req->uid, allowed, redirect, epoll_fd);
 }
 
 jint get_uid(const int version, const int protocol,
@@ -333,24 +436,34 @@ jint get_uid(const int version, const int protocol,
     inet_ntop(version == 4 ? AF_INET : AF_INET6, saddr, source, sizeof(source));
     inet_ntop(version == 4 ? AF_INET : AF_INET6, daddr, dest, sizeof(dest));
 
-    struct timeval time;
-    gettimeofday(&time, NULL);
-    long now = (time.tv_sec * 1000) + (time.tv_usec / 1000);
+    long long now = get_ms();
 
-    // Check IPv6 table first
+    // IPv4 sockets are usually listed as IPv4 mapped IPv6 sockets
+    uint8_t saddr128[16];
+    uint8_t daddr128[16];
     if (version == 4) {
-        int8_t saddr128[16];
         memset(saddr128, 0, 10);
         saddr128[10] = (uint8_t) 0xFF;
         saddr128[11] = (uint8_t) 0xFF;
         memcpy(saddr128 + 12, saddr, 4);
 
-        int8_t daddr128[16];
         memset(daddr128, 0, 10);
         daddr128[10] = (uint8_t) 0xFF;
         daddr128[11] = (uint8_t) 0xFF;
         memcpy(daddr128 + 12, daddr, 4);
+    }
+
+    // Check cache, IPv6 table first
+    if (version == 4)
+        uid = get_uid_cached(6, protocol, saddr128, sport, daddr128, dport, now);
+    if (uid == -1)
+        uid = get_uid_cached(version, protocol, saddr, sport, daddr, dport, now);
+    if (uid != -1)
+        log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
+                    version, protocol, source, sport, dest, dport, uid);
 
+    // Scan proc files, IPv6 table first
+    if (uid == -1 && version == 4) {
         uid = get_uid_sub(6, protocol, saddr128, sport, daddr128, dport, source, dest, now);
         log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d as inet6",
                     version, protocol, source, sport, dest, dport, uid);
@@ -373,53 +486,240 @@ jint get_uid(const int version, const int protocol,
 }
 
 int uid_cache_size = 0;
-struct uid_cache_entry *uid_cache = NULL;
+long long uid_cache_swept = 0;
+struct uid_cache_entry *uid_cache[UID_HASH];
+long long uid_scan_time[6];
 
-jint get_uid_sub(const int version, const int protocol,
-                 const void *saddr, const uint16_t sport,
-                 const void *daddr, const uint16_t dport,
-                 const char *source, const char *dest,
-                 long now) {
-    // NETLINK is not available on Android due to SELinux policies :-(
-    // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
-    // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
+static uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+static unsigned int get_uid_bucket(const int version, const int protocol, const uint16_t sport) {
+    // Local port only, since cached addresses and remote port can be wildcards
+    return (((unsigned int) sport * 31 + protocol) * 31 + version) & (UID_HASH - 1);
+}
 
-    static uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+static int match_uid_entry(const struct uid_cache_entry *e,
+                           const int version, const int protocol,
+                           const void *saddr, const uint16_t sport,
+                           const void *daddr, const uint16_t dport) {
+    size_t alen = (size_t) (version == 4 ? 4 : 16);
+    return (e->version == version &&
+            e->protocol == protocol &&
+            e->sport == sport &&
+            (e->dport == dport || e->dport == 0) &&
+            (memcmp(e->saddr, saddr, alen) == 0 || memcmp(e->saddr, zero, alen) == 0) &&
+            (memcmp(e->daddr, daddr, alen) == 0 || memcmp(e->daddr, zero, alen) == 0));
+}
 
-    // Check cache
-    for (int i = 0; i < uid_cache_size; i++)
-        if (now - uid_cache[i].time <= UID_MAX_AGE &&
-            uid_cache[i].version == version &&
-            uid_cache[i].protocol == protocol &&
-            uid_cache[i].sport == sport &&
-            (uid_cache[i].dport == dport || uid_cache[i].dport == 0) &&
-            (memcmp(uid_cache[i].saddr, saddr, version == 4 ? 4 : 16) == 0 ||
-             memcmp(uid_cache[i].saddr, zero, version == 4 ? 4 : 16) == 0) &&
-            (memcmp(uid_cache[i].daddr, daddr, version == 4 ? 4 : 16) == 0 ||
-             memcmp(uid_cache[i].daddr, zero, version == 4 ? 4 : 16) == 0)) {
+static void sweep_uid_cache(long long now) {
+    for (int b = 0; b < UID_HASH; b++) {
+        struct uid_cache_entry **e = &uid_cache[b];
+        while (*e != NULL)
+            if (now - (*e)->time > UID_MAX_AGE) {
+                struct uid_cache_entry *c = *e;
+                *e = c->next;
+                free(c);
+                uid_cache_size--;
+            } else
+                e = &(*e)->next;
+    }
+}
 
-            log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
-                        version, protocol, source, sport, dest, dport, uid_cache[i].uid);
+static void put_uid_cache(const int version, const int protocol,
+                          const uint8_t *saddr, const uint16_t sport,
+                          const uint8_t *daddr, const uint16_t dport,
+                          jint uid, long long now) {
+    size_t alen = (size_t) (version == 4 ? 4 : 16);
+    struct uid_cache_entry **e = &uid_cache[get_uid_bucket(version, protocol, sport)];
+
+    // Refresh existing entry, drop aged entries of the bucket
+    while (*e != NULL) {
+        struct uid_cache_entry *c = *e;
+        if (c->version == version && c->protocol == protocol &&
+            c->sport == sport && c->dport == dport &&
+            memcmp(c->saddr, saddr, alen) == 0 && memcmp(c->daddr, daddr, alen) == 0) {
+            c->uid = uid;
+            c->time = now;
+            return;
+        }
+        if (now - c->time > UID_MAX_AGE) {
+            *e = c->next;
+            free(c);
+            uid_cache_size--;
+        } else
+            e = &c->next;
+    }
 
+    // Make room, sweeping all buckets at most once per entry lifetime
+    if (uid_cache_size >= UID_CACHE_MAX) {
+        if (now - uid_cache_swept > UID_MAX_AGE) {
+            uid_cache_swept = now;
+            sweep_uid_cache(now);
+        }
+        if (uid_cache_size >= UID_CACHE_MAX) {
+            unsigned int bucket = get_uid_bucket(version, protocol, sport);
+            struct uid_cache_entry **oldest = NULL;
+            for (e = &uid_cache[bucket]; *e != NULL; e = &(*e)->next)
+                if (oldest == NULL || (*e)->time < (*oldest)->time)
+                    oldest = e;
+            if (oldest == NULL)
+                return;
+            struct uid_cache_entry *o = *oldest;
+            *oldest = o->next;
+            free(o);
+            uid_cache_size--;
+
+            e = &uid_cache[bucket];
+            while (*e != NULL)
+                e = &(*e)->next;
+        }
+    }
+
+    struct uid_cache_entry *c = malloc(sizeof(struct uid_cache_entry));
+    if (c == NULL) {
+        log_android(ANDROID_LOG_ERROR, "uid cache malloc failed");
+        return;
+    }
+    c->version = (uint8_t) version;
+    c->protocol = (uint8_t) protocol;
+    memcpy(c->saddr, saddr, alen);
+    c->sport = sport;
+    memcpy(c->daddr, daddr, alen);
+    c->dport = dport;
+    c->uid = uid;
+    c->time = now;
+    c->next = NULL;
+    *e = c;
+    uid_cache_size++;
+}
+
+jint get_uid_cached(const int version, const int protocol,
+                    const void *saddr, const uint16_t sport,
+                    const void *daddr, const uint16_t dport,
+                    long long now) {
+    struct uid_cache_entry *e = uid_cache[get_uid_bucket(version, protocol, sport)];
+    while (e != NULL) {
+        if (now - e->time <= UID_MAX_AGE &&
+            match_uid_entry(e, version, protocol, saddr, sport, daddr, dport)) {
             if (protocol == IPPROTO_UDP)
                 return -2;
             else
-                return uid_cache[i].uid;
+                return e->uid;
         }
+        e = e->next;
+    }
+    return -1;
+}
+
+static const char *skip_space(const char *p) {
+    while (*p == ' ' || *p == '\t')
+        p++;
+    return p;
+}
+
+static const char *skip_field(const char *p) {
+    p = skip_space(p);
+    while (*p && *p != ' ' && *p != '\t' && *p != '\n')
+        p++;
+    return p;
+}
+
+static const char *parse_hex(const char *p, uint32_t *value, int digits) {
+    uint32_t v = 0;
+    int n = 0;
+    for (; n < digits; n++, p++) {
+        uint8_t d = char2nible(*p);
+        if (d == 255)
+            break;
+        v = (v << 4) | d;
+    }
+    *value = v;
+    return (n == 0 ? NULL : p);
+}
+
+static const char *parse_address(const char *p, int ws, uint8_t *addr, uint16_t *port) {
+    // Address words are printed in host byte order
+    for (int w = 0; w < ws; w++) {
+        uint32_t word;
+        const char *q = parse_hex(p, &word, 8);
+        if (q == NULL || q - p != 8)
+            return NULL;
+        memcpy(addr + w * 4, &word, 4);
+        p = q;
+    }
+    if (*p++ != ':')
+        return NULL;
+
+    uint32_t value;
+    p = parse_hex(p, &value, 4);
+    *port = (uint16_t) value;
+    return p;
+}
+
+static int parse_proc_line(const char *line, int ws,
+                           uint8_t *saddr, uint16_t *sport,
+                           uint8_t *daddr, uint16_t *dport,
+                           jint *uid) {
+    //  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid ...
+    const char *p = strchr(line, ':');
+    if (p == NULL)
+        return 0;
+    p = skip_space(p + 1);
+    p = parse_address(p, ws, saddr, sport);
+    if (p == NULL)
+        return 1;
+    p = parse_address(skip_space(p), ws, daddr, dport);
+    if (p == NULL)
+        return 3;
+
+    // Skip st, tx_queue:rx_queue, tr:tm->when, retrnsmt
+    for (int f = 0; f < 4; f++)
+        p = skip_field(p);
+
+    p = skip_space(p);
+    if (*p < '0' || *p > '9')
+        return 4;
+    jint value = 0;
+    while (*p >= '0' && *p <= '9')
+        value = value * 10 + (*p++ - '0');
+    *uid = value;
+
+    return 5;
+}
+
+jint get_uid_sub(const int version, const int protocol,
+                 const void *saddr, const uint16_t sport,
+                 const void *daddr, const uint16_t dport,
+                 const char *source, const char *dest,
+                 long long now) {
+    // NETLINK is not available on Android due to SELinux policies :-(
+    // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
+    // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
 
     // Get proc file name
+    int index;
     char *fn = NULL;
-    if (protocol == IPPROTO_ICMP && version == 4)
+    if (protocol == IPPROTO_ICMP && version == 4) {
+        index = 0;
         fn = "/proc/net/icmp";
-    else if (protocol == IPPROTO_ICMPV6 && version == 6)
+    } else if (protocol == IPPROTO_ICMPV6 && version == 6) {
+        index = 1;
         fn = "/proc/net/icmp6";
-    else if (protocol == IPPROTO_TCP)
+    } else if (protocol == IPPROTO_TCP) {
+        index = (version == 4 ? 2 : 3);
         fn = (version == 4 ? "/proc/net/tcp" : "/proc/net/tcp6");
-    else if (protocol == IPPROTO_UDP)
+    } else if (protocol == IPPROTO_UDP) {
+        index = (version == 4 ? 4 : 5);
         fn = (version == 4 ? "/proc/net/udp" : "/proc/net/udp6");
-    else
+    } else
         return -1;
 
+    // Sockets of packets read before the last scan are in the cache already
+    if (uid_scan_time[index] > tun_read_time) {
+        log_android(ANDROID_LOG_DEBUG, "uid %s scanned %lld ms ago",
+                    fn, now - uid_scan_time[index]);
+        return -1;
+    }
+
     // Open proc file
     FILE *fd = fopen(fn, "r");
     if (fd == NULL) {
@@ -432,72 +732,35 @@ jint get_uid_sub(const int version, const int protocol,
     char line[250];
     int fields;
 
-    char shex[16 * 2 + 1];
     uint8_t _saddr[16];
-    int _sport;
+    uint16_t _sport;
 
-    char dhex[16 * 2 + 1];
     uint8_t _daddr[16];
-    int _dport;
+    uint16_t _dport;
 
     jint _uid;
 
     // Scan proc file
     int l = 0;
     *line = 0;
-    int c = 0;
     int ws = (version == 4 ? 1 : 4);
-    const char *fmt = (version == 4
-                       ? "%*d: %8s:%X %8s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld"
-                       : "%*d: %32s:%X %32s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld");
+    size_t alen = (size_t) (ws * 4);
     while (fgets(line, sizeof(line), fd) != NULL) {
         if (!l++)
             continue;
 
-        fields = sscanf(line, fmt, shex, &_sport, dhex, &_dport, &_uid);
-        if (fields == 5 && strlen(shex) == ws * 8 && strlen(dhex) == ws * 8) {
-            hex2bytes(shex, _saddr);
-            hex2bytes(dhex, _daddr);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _saddr)[w] = htonl(((uint32_t *) _saddr)[w]);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _daddr)[w] = htonl(((uint32_t *) _daddr)[w]);
-
+        fields = parse_proc_line(line, ws, _saddr, &_sport, _daddr, &_dport, &_uid);
+        if (fields == 5) {
             if (_sport == sport &&
                 (_dport == dport || _dport == 0) &&
-                (memcmp(_saddr, saddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_saddr, zero, (size_t) (ws * 4)) == 0) &&
-                (memcmp(_daddr, daddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_daddr, zero, (size_t) (ws * 4)) == 0))
+                (memcmp(_saddr, saddr, alen) == 0 || memcmp(_saddr, zero, alen) == 0) &&
+                (memcmp(_daddr, daddr, alen) == 0 || memcmp(_daddr, zero, alen) == 0))
                 uid = _uid;
 
-            for (; c < uid_cache_size; c++)
-                if (now - uid_cache[c].time > UID_MAX_AGE)
-                    break;
-
-            if (c >= uid_cache_size) {
-                if (uid_cache_size == 0)
-                    uid_cache = malloc(sizeof(struct uid_cache_entry));
-                else
-                    uid_cache = realloc(uid_cache,
-                                        sizeof(struct uid_cache_entry) *
-                                        (uid_cache_size + 1));
-                c = uid_cache_size;
-                uid_cache_size++;
-            }
-
-            uid_cache[c].version = (uint8_t) version;
-            uid_cache[c].protocol = (uint8_t) protocol;
-            memcpy(uid_cache[c].saddr, _saddr, (size_t) (ws * 4));
-            uid_cache[c].sport = (uint16_t) _sport;
-            memcpy(uid_cache[c].daddr, daddr, (size_t) (ws * 4));
-            uid_cache[c].dport = (uint16_t) _dport;
-            uid_cache[c].uid = _uid;
-            uid_cache[c].time = now;
+            put_uid_cache(version, protocol, _saddr, _sport, _daddr, _dport, _uid, now);
         } else {
             log_android(ANDROID_LOG_ERROR, "Invalid field #%d: %s", fields, line);
+            fclose(fd);
             return -2;
         }
     }
@@ -505,5 +768,7 @@ jint get_uid_sub(const int version, const int protocol,
     if (fclose(fd))
         log_android(ANDROID_LOG_ERROR, "fclose %s error %d: %s", fn, errno, strerror(errno));
 
+    uid_scan_time[index] = get_ms();
+
     return uid;
 }
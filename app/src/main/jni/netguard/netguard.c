@@ -132,6 +132,33 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1init(
 
     if (pthread_mutex_init(&ctx->lock, NULL))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+    if (pthread_mutex_init(&ctx->hosts_lock, NULL))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+    if (pthread_mutex_init(&ctx->log_lock, NULL))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+    if (pthread_mutex_init(&ctx->verdict_lock, NULL))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+    if (pthread_cond_init(&ctx->verdict_cond, NULL))
+        log_android(ANDROID_LOG_ERROR, "pthread_cond_init failed");
+
+    // Allocate tun packet ring, fall back to reading a single packet at a time
+    ctx->tun_batch = TUN_BATCH;
+    ctx->tun_ring = malloc(TUN_BATCH * get_mtu());
+    if (ctx->tun_ring == NULL) {
+        log_android(ANDROID_LOG_ERROR, "tun ring malloc %d failed", TUN_BATCH * get_mtu());
+        ctx->tun_batch = 1;
+        ctx->tun_ring = malloc(get_mtu());
+        if (ctx->tun_ring == NULL) {
+            log_android(ANDROID_LOG_ERROR, "tun ring malloc %d failed", get_mtu());
+            ctx->tun_batch = 0;
+        }
+    }
+
+    // Allocate verdict cache
+    ctx->verdicts = calloc(VERDICT_CACHE, sizeof(struct verdict));
+
+    // Allocate log ring, shared with Java
+    ctx->log_ring = calloc(LOG_RECORDS, sizeof(struct log_record));
 
     // Create signal pipe
     if (pipe(ctx->pipefds))
@@ -155,6 +182,20 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1start(
     loglevel = loglevel_;
     max_tun_msg = 0;
     ctx->stopping = 0;
+    ctx->recheck = 0;
+    ctx->tun_batches = 0;
+    ctx->tun_packets = 0;
+    ctx->tun_batch_max = 0;
+    ctx->pool_high = ctx->pool_used;
+    ctx->pool_denied = 0;
+    clear_verdicts(ctx);
+    ctx->log_records = 0;
+    ctx->log_drops = 0;
+    ctx->stall_total = 0;
+    ctx->stall_max = 0;
+    ctx->async_count = 0;
+    ctx->async_wait_max = 0;
+    ctx->async_drops = 0;
 
     log_android(ANDROID_LOG_WARN, "Starting level %d", loglevel);
 
@@ -162,10 +203,12 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1start(
 
 JNIEXPORT void JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1run(
-        JNIEnv *env, jobject instance, jlong context, jint tun, jboolean fwd53, jint rcode) {
+        JNIEnv *env, jobject instance, jlong context,
+        jint tun, jboolean fwd53, jint rcode, jboolean async) {
     struct context *ctx = (struct context *) context;
 
-    log_android(ANDROID_LOG_WARN, "Running tun %d fwd53 %d level %d", tun, fwd53, loglevel);
+    log_android(ANDROID_LOG_WARN, "Running tun %d fwd53 %d level %d async %d",
+                tun, fwd53, loglevel, async);
 
     // Set blocking
     int flags = fcntl(tun, F_GETFL, 0);
@@ -180,6 +223,7 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1run(
     args->tun = tun;
     args->fwd53 = fwd53;
     args->rcode = rcode;
+    args->async = async;
     args->ctx = ctx;
     handle_events(args);
 }
@@ -195,6 +239,44 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1stop(
         log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
 }
 
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1recheck(
+        JNIEnv *env, jobject instance, jlong context) {
+    struct context *ctx = (struct context *) context;
+    ctx->recheck = 1;
+
+    log_android(ANDROID_LOG_WARN, "Write pipe recheck");
+    if (write(ctx->pipefds[1], "r", 1) < 0)
+        log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+}
+
+JNIEXPORT jlong JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1dropped(
+        JNIEnv *env, jobject instance, jint tun) {
+    // Packets the kernel could not queue on the tun interface because nobody was reading
+    struct ifreq ifr;
+    memset(&ifr, 0, sizeof(struct ifreq));
+    if (ioctl(tun, TUNGETIFF, &ifr)) {
+        log_android(ANDROID_LOG_WARN, "ioctl TUNGETIFF error %d: %s", errno, strerror(errno));
+        return -1;
+    }
+
+    char fn[64 + IFNAMSIZ];
+    sprintf(fn, "/sys/class/net/%s/statistics/tx_dropped", ifr.ifr_name);
+    FILE *fd = fopen(fn, "r");
+    if (fd == NULL) {
+        log_android(ANDROID_LOG_WARN, "fopen %s error %d: %s", fn, errno, strerror(errno));
+        return -1;
+    }
+
+    long long dropped = -1;
+    if (fscanf(fd, "%lld", &dropped) != 1)
+        dropped = -1;
+    fclose(fd);
+
+    return dropped;
+}
+
 JNIEXPORT void JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1clear(
         JNIEnv *env, jobject instance, jlong context) {
@@ -202,6 +284,91 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1clear(
     clear(ctx);
 }
 
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1set_1generation(
+        JNIEnv *env, jobject instance, jlong context, jint generation) {
+    struct context *ctx = (struct context *) context;
+    log_android(ANDROID_LOG_INFO, "Verdict generation %d", generation);
+    ctx->verdict_generation = generation;
+}
+
+JNIEXPORT jobject JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1log(
+        JNIEnv *env, jobject instance, jlong context) {
+    struct context *ctx = (struct context *) context;
+    return (*env)->NewDirectByteBuffer(
+            env, ctx->log_ring, LOG_RECORDS * sizeof(struct log_record));
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1set_1log(
+        JNIEnv *env, jobject instance, jlong context, jboolean enabled) {
+    struct context *ctx = (struct context *) context;
+    ctx->log_enabled = (enabled ? 1 : 0);
+}
+
+JNIEXPORT jlong JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1peek_1log(
+        JNIEnv *env, jobject instance, jlong context) {
+    struct context *ctx = (struct context *) context;
+
+    if (pthread_mutex_lock(&ctx->log_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    jlong pending = ((jlong) ctx->log_first << 32) | ctx->log_count;
+
+    if (pthread_mutex_unlock(&ctx->log_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return pending;
+}
+
+JNIEXPORT jint JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1release_1log(
+        JNIEnv *env, jobject instance, jlong context, jint count) {
+    struct context *ctx = (struct context *) context;
+
+    if (pthread_mutex_lock(&ctx->log_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    if (count > ctx->log_count)
+        count = ctx->log_count;
+    ctx->log_first = (ctx->log_first + count) % LOG_RECORDS;
+    ctx->log_count -= count;
+    if (ctx->log_count == 0)
+        ctx->log_signaled = 0;
+
+    jint lost = ctx->log_lost;
+    ctx->log_lost = 0;
+
+    if (pthread_mutex_unlock(&ctx->log_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return lost;
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1set_1hosts(
+        JNIEnv *env, jobject instance, jlong context, jobjectArray jnames, jboolean subdomains) {
+    struct context *ctx = (struct context *) context;
+
+    jsize count = (*env)->GetArrayLength(env, jnames);
+    struct hosts *hosts = create_hosts(count, subdomains);
+    if (hosts == NULL)
+        return;
+
+    for (jsize i = 0; i < count; i++) {
+        jstring jname = (jstring) (*env)->GetObjectArrayElement(env, jnames, i);
+        const char *name = (*env)->GetStringUTFChars(env, jname, NULL);
+        add_host(hosts, name);
+        (*env)->ReleaseStringUTFChars(env, jname, name);
+        (*env)->DeleteLocalRef(env, jname);
+    }
+
+    log_android(ANDROID_LOG_WARN, "Hosts %d/%d subdomains %d", hosts->count, count, subdomains);
+    set_hosts(ctx, hosts);
+}
+
 JNIEXPORT jint JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1mtu(JNIEnv *env, jobject instance) {
     return get_mtu();
@@ -215,23 +382,27 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1stats(
     if (pthread_mutex_lock(&ctx->lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
-    jintArray jarray = (*env)->NewIntArray(env, 5);
+    jintArray jarray = (*env)->NewIntArray(env, 20);
     jint *jcount = (*env)->GetIntArrayElements(env, jarray, NULL);
 
-    struct ng_session *s = ctx->ng_session;
-    while (s != NULL) {
-        if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-            if (!s->icmp.stop)
-                jcount[0]++;
-        } else if (s->protocol == IPPROTO_UDP) {
-            if (s->udp.state == UDP_ACTIVE)
-                jcount[1]++;
-        } else if (s->protocol == IPPROTO_TCP) {
-            if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                jcount[2]++;
-        }
-        s = s->next;
-    }
+    jcount[0] = ctx->isessions;
+    jcount[1] = ctx->usessions;
+    jcount[2] = ctx->tsessions;
+    jcount[5] = ctx->tun_batches;
+    jcount[6] = ctx->tun_packets;
+    jcount[7] = ctx->tun_batch_max;
+    jcount[8] = (jint) ctx->pool_used;
+    jcount[9] = (jint) ctx->pool_high;
+    jcount[10] = ctx->pool_denied;
+    jcount[11] = ctx->verdict_hits;
+    jcount[12] = ctx->verdict_misses;
+    jcount[13] = ctx->log_records;
+    jcount[14] = ctx->log_drops;
+    jcount[15] = (jint) ctx->stall_total;
+    jcount[16] = ctx->stall_max;
+    jcount[17] = ctx->async_count;
+    jcount[18] = ctx->async_wait_max;
+    jcount[19] = ctx->async_drops;
 
     if (pthread_mutex_unlock(&ctx->lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
@@ -339,9 +510,23 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(
     log_android(ANDROID_LOG_INFO, "Done");
 
     clear(ctx);
+    free(ctx->ng_heap);
+    free(ctx->tun_ring);
+    free(ctx->verdicts);
+    free(ctx->log_ring);
+    clear_pool(ctx);
+    set_hosts(ctx, NULL);
 
     if (pthread_mutex_destroy(&ctx->lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+    if (pthread_mutex_destroy(&ctx->hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+    if (pthread_mutex_destroy(&ctx->log_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+    if (pthread_mutex_destroy(&ctx->verdict_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+    if (pthread_cond_destroy(&ctx->verdict_cond))
+        log_android(ANDROID_LOG_ERROR, "pthread_cond_destroy failed");
 
     for (int i = 0; i < 2; i++)
         if (close(ctx->pipefds[i]))
@@ -516,34 +701,104 @@ int jniCheckException(JNIEnv *env) {
     return 0;
 }
 
-static jmethodID midLogPacket = NULL;
+static jmethodID midLogRecords = NULL;
+
+void log_record(const struct arguments *args,
+                jint version,
+                jint protocol,
+                const char *flags,
+                const char *source,
+                jint sport,
+                const char *dest,
+                jint dport,
+                const char *data,
+                jint uid,
+                jboolean allowed) {
+    struct context *ctx = args->ctx;
+    if (!ctx->log_enabled || ctx->log_ring == NULL || uid == getuid())
+        return;
 
-void log_packet(const struct arguments *args, jobject jpacket) {
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+
+    if (pthread_mutex_lock(&ctx->log_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    int signal = 0;
+    if (ctx->log_count < LOG_RECORDS) {
+        struct log_record *r = &ctx->log_ring[(ctx->log_first + ctx->log_count) % LOG_RECORDS];
+        memset(r, 0, sizeof(struct log_record));
+        r->time = tv.tv_sec * 1000LL + tv.tv_usec / 1000;
+        r->uid = uid;
+        r->version = (uint8_t) version;
+        r->protocol = (uint8_t) protocol;
+        r->allowed = (uint8_t) (allowed ? 1 : 0);
+        r->sport = (uint16_t) sport;
+        r->dport = (uint16_t) dport;
+        strncpy(r->flags, flags, sizeof(r->flags) - 1);
+        strncpy(r->saddr, source, sizeof(r->saddr) - 1);
+        strncpy(r->daddr, dest, sizeof(r->daddr) - 1);
+        strncpy(r->data, data, sizeof(r->data) - 1);
+
+        ctx->log_count++;
+        ctx->log_records++;
+
+        // Java drains until the ring is empty, so signal once per batch
+        signal = !ctx->log_signaled;
+        ctx->log_signaled = 1;
+    } else {
+        ctx->log_drops++;
+        ctx->log_lost++;
+    }
+
+    if (pthread_mutex_unlock(&ctx->log_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (signal) {
 #ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
+        float mselapsed;
+        struct timeval start, end;
+        gettimeofday(&start, NULL);
 #endif
 
-    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
+        jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
 
-    const char *signature = "(Leu/faircode/netguard/Packet;)V";
-    if (midLogPacket == NULL)
-        midLogPacket = jniGetMethodID(args->env, clsService, "logPacket", signature);
+        const char *signature = "()V";
+        if (midLogRecords == NULL)
+            midLogRecords = jniGetMethodID(args->env, clsService, "logRecords", signature);
 
-    (*args->env)->CallVoidMethod(args->env, args->instance, midLogPacket, jpacket);
-    jniCheckException(args->env);
+        (*args->env)->CallVoidMethod(args->env, args->instance, midLogRecords);
+        jniCheckException(args->env);
 
-    (*args->env)->DeleteLocalRef(args->env, clsService);
-    (*args->env)->DeleteLocalRef(args->env, jpacket);
+        (*args->env)->DeleteLocalRef(args->env, clsService);
 
 #ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
+        gettimeofday(&end, NULL);
+        mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
+                    (end.tv_usec - start.tv_usec) / 1000.0;
+        if (mselapsed > PROFILE_JNI)
+            log_android(ANDROID_LOG_WARN, "log_record %f", mselapsed);
 #endif
+    }
+}
+
+void log_verdict(const struct arguments *args,
+                 jint version,
+                 jint protocol,
+                 const char *flags,
+                 const char *source,
+                 jint sport,
+                 const char *dest,
+                 jint dport,
+                 jint uid,
+                 const struct allowed *redirect) {
+    char data[INET6_ADDRSTRLEN + 10];
+    if (redirect != NULL && *redirect->raddr != 0 && redirect->rport != 0)
+        sprintf(data, "> %s/%u", redirect->raddr, redirect->rport);
+    else
+        *data = 0;
+    log_record(args, version, protocol, flags, source, sport, dest, dport,
+               data, uid, (jboolean) (redirect != NULL));
 }
 
 static jmethodID midConnectionPacket = NULL;
@@ -627,45 +882,10 @@ void dns_resolved(const struct arguments *args,
 #endif
 }
 
-static jmethodID midIsDomainBlocked = NULL;
-
-jboolean is_domain_blocked(const struct arguments *args, const char *name) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
-
-    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
-
-    const char *signature = "(Ljava/lang/String;)Z";
-    if (midIsDomainBlocked == NULL)
-        midIsDomainBlocked = jniGetMethodID(args->env, clsService, "isDomainBlocked", signature);
-
-    jstring jname = (*args->env)->NewStringUTF(args->env, name);
-
-    jboolean jallowed = (*args->env)->CallBooleanMethod(
-            args->env, args->instance, midIsDomainBlocked, jname);
-    jniCheckException(args->env);
-
-    (*args->env)->DeleteLocalRef(args->env, jname);
-    (*args->env)->DeleteLocalRef(args->env, clsService);
-
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "is_domain_blocked %f", mselapsed);
-#endif
-
-    return jallowed;
-}
-
 static jmethodID midIsAddressAllowed = NULL;
 jfieldID fidRaddr = NULL;
 jfieldID fidRport = NULL;
-struct allowed allowed;
+__thread struct allowed allowed; // the worker asks for verdicts too
 
 struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket) {
 #ifdef PROFILE_JNI
@@ -826,9 +1046,65 @@ jfieldID fidUsageDPort = NULL;
 jfieldID fidUsageUid = NULL;
 jfieldID fidUsageSent = NULL;
 jfieldID fidUsageReceived = NULL;
+jfieldID fidUsageConnections = NULL;
+
+static uint32_t hash_usage(jint version, jint protocol, const char *daddr, jint dport, jint uid) {
+    // http://www.isthe.com/chongo/tech/comp/fnv/
+    uint32_t hash = 2166136261;
+    for (const char *p = daddr; *p; p++) {
+        hash ^= (uint8_t) *p;
+        hash *= 16777619;
+    }
+    hash ^= (uint32_t) ((version << 24) ^ (protocol << 16) ^ dport);
+    hash *= 16777619;
+    hash ^= (uint32_t) uid;
+    hash *= 16777619;
+    return hash;
+}
 
 void account_usage(const struct arguments *args, jint version, jint protocol,
                    const char *daddr, jint dport, jint uid, jlong sent, jlong received) {
+    struct context *ctx = args->ctx;
+
+    // Aggregate per destination, flushed to Java in batches
+    uint32_t hash = hash_usage(version, protocol, daddr, dport, uid) & (USAGE_HASH - 1);
+    struct usage *u = ctx->usage[hash];
+    while (u != NULL &&
+           !(u->version == version && u->protocol == protocol && u->dport == dport &&
+             u->uid == uid && strcmp(u->daddr, daddr) == 0))
+        u = u->next;
+
+    if (u == NULL) {
+        u = calloc(1, sizeof(struct usage));
+        if (u == NULL) {
+            log_android(ANDROID_LOG_ERROR, "usage calloc failed");
+            return;
+        }
+        u->version = version;
+        u->protocol = protocol;
+        strncpy(u->daddr, daddr, sizeof(u->daddr) - 1);
+        u->dport = dport;
+        u->uid = uid;
+        u->next = ctx->usage[hash];
+        ctx->usage[hash] = u;
+
+        if (ctx->usage_count++ == 0)
+            ctx->usage_time = time(NULL);
+    }
+
+    u->sent += sent;
+    u->received += received;
+    u->connections++;
+
+    if (ctx->usage_count >= USAGE_MAX)
+        flush_usage(args);
+}
+
+void flush_usage(const struct arguments *args) {
+    struct context *ctx = args->ctx;
+    if (ctx->usage_count == 0)
+        return;
+
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -837,7 +1113,7 @@ void account_usage(const struct arguments *args, jint version, jint protocol,
 
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
 
-    const char *signature = "(Leu/faircode/netguard/Usage;)V";
+    const char *signature = "([Leu/faircode/netguard/Usage;)V";
     if (midAccountUsage == NULL)
         midAccountUsage = jniGetMethodID(args->env, clsService, "accountUsage", signature);
 
@@ -845,8 +1121,6 @@ void account_usage(const struct arguments *args, jint version, jint protocol,
     if (midInitUsage == NULL)
         midInitUsage = jniGetMethodID(args->env, clsUsage, "<init>", "()V");
 
-    jobject jusage = jniNewObject(args->env, clsUsage, midInitUsage, usage);
-
     if (fidUsageTime == NULL) {
         const char *string = "Ljava/lang/String;";
         fidUsageTime = jniGetFieldID(args->env, clsUsage, "Time", "J");
@@ -857,25 +1131,46 @@ void account_usage(const struct arguments *args, jint version, jint protocol,
         fidUsageUid = jniGetFieldID(args->env, clsUsage, "Uid", "I");
         fidUsageSent = jniGetFieldID(args->env, clsUsage, "Sent", "J");
         fidUsageReceived = jniGetFieldID(args->env, clsUsage, "Received", "J");
+        fidUsageConnections = jniGetFieldID(args->env, clsUsage, "Connections", "I");
     }
 
     jlong jtime = time(NULL) * 1000LL;
-    jstring jdaddr = (*args->env)->NewStringUTF(args->env, daddr);
-
-    (*args->env)->SetLongField(args->env, jusage, fidUsageTime, jtime);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageVersion, version);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageProtocol, protocol);
-    (*args->env)->SetObjectField(args->env, jusage, fidUsageDAddr, jdaddr);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageDPort, dport);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageUid, uid);
-    (*args->env)->SetLongField(args->env, jusage, fidUsageSent, sent);
-    (*args->env)->SetLongField(args->env, jusage, fidUsageReceived, received);
-
-    (*args->env)->CallVoidMethod(args->env, args->instance, midAccountUsage, jusage);
+    jobjectArray jusages = (*args->env)->NewObjectArray(
+            args->env, ctx->usage_count, clsUsage, NULL);
+
+    int i = 0;
+    for (int h = 0; h < USAGE_HASH; h++) {
+        struct usage *u = ctx->usage[h];
+        while (u != NULL) {
+            jobject jusage = jniNewObject(args->env, clsUsage, midInitUsage, usage);
+            jstring jdaddr = (*args->env)->NewStringUTF(args->env, u->daddr);
+
+            (*args->env)->SetLongField(args->env, jusage, fidUsageTime, jtime);
+            (*args->env)->SetIntField(args->env, jusage, fidUsageVersion, u->version);
+            (*args->env)->SetIntField(args->env, jusage, fidUsageProtocol, u->protocol);
+            (*args->env)->SetObjectField(args->env, jusage, fidUsageDAddr, jdaddr);
+            (*args->env)->SetIntField(args->env, jusage, fidUsageDPort, u->dport);
+            (*args->env)->SetIntField(args->env, jusage, fidUsageUid, u->uid);
+            (*args->env)->SetLongField(args->env, jusage, fidUsageSent, u->sent);
+            (*args->env)->SetLongField(args->env, jusage, fidUsageReceived, u->received);
+            (*args->env)->SetIntField(args->env, jusage, fidUsageConnections, u->connections);
+            (*args->env)->SetObjectArrayElement(args->env, jusages, i++, jusage);
+
+            (*args->env)->DeleteLocalRef(args->env, jdaddr);
+            (*args->env)->DeleteLocalRef(args->env, jusage);
+
+            struct usage *c = u;
+            u = u->next;
+            free(c);
+        }
+        ctx->usage[h] = NULL;
+    }
+    ctx->usage_count = 0;
+
+    (*args->env)->CallVoidMethod(args->env, args->instance, midAccountUsage, jusages);
     jniCheckException(args->env);
 
-    (*args->env)->DeleteLocalRef(args->env, jdaddr);
-    (*args->env)->DeleteLocalRef(args->env, jusage);
+    (*args->env)->DeleteLocalRef(args->env, jusages);
     (*args->env)->DeleteLocalRef(args->env, clsService);
 
 #ifdef PROFILE_JNI
@@ -883,7 +1178,7 @@ void account_usage(const struct arguments *args, jint version, jint protocol,
     mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
                 (end.tv_usec - start.tv_usec) / 1000.0;
     if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
+        log_android(ANDROID_LOG_WARN, "flush_usage %f", mselapsed);
 #endif
 }
 
@@ -29,6 +29,8 @@
 #include <netinet/tcp.h>
 #include <netinet/ip_icmp.h>
 #include <netinet/icmp6.h>
+#include <net/if.h>
+#include <linux/if_tun.h>
 
 #include <android/log.h>
 #include <sys/system_properties.h>
@@ -41,6 +43,12 @@
 #define EPOLL_EVENTS 20
 #define EPOLL_MIN_CHECK 100 // milliseconds
 
+#define TUN_BATCH 16 // packets
+
+#define POOL_CLASSES 6
+#define POOL_MAX (8 * 1024 * 1024) // bytes queued
+#define POOL_CACHE (2 * 1024 * 1024) // bytes kept for reuse
+
 #define ICMP4_MAXMSG (IP_MAXPACKET - 20 - 8) // bytes (socket)
 #define ICMP6_MAXMSG (IPV6_MAXPACKET - 40 - 8) // bytes (socket)
 #define UDP4_MAXMSG (IP_MAXPACKET - 20 - 8) // bytes (socket)
@@ -60,8 +68,24 @@
 
 #define SESSION_MAX 384 // number
 #define SESSION_LIMIT 30 // percent
+#define SESSION_HASH 1024 // buckets, power of two
+#define SESSION_LOAD_STEPS 10 // deadlines are recomputed when the load rises a step
 
 #define UID_MAX_AGE 30000 // milliseconds
+#define UID_HASH 256 // buckets, power of two
+#define UID_CACHE_MAX 4096 // entries
+
+#define VERDICT_CACHE 1024 // entries, power of two
+#define VERDICT_TTL 30 // seconds
+#define VERDICT_QUEUE 64 // packets waiting for a verdict
+
+#define HOSTS_MIN 16 // slots, power of two
+
+#define LOG_RECORDS 512 // records, shared with Java
+
+#define USAGE_HASH 256 // buckets, power of two
+#define USAGE_FLUSH 5 // seconds
+#define USAGE_MAX 1024 // entries
 
 #define SOCKS5_NONE 1
 #define SOCKS5_HELLO 2
@@ -69,12 +93,81 @@
 #define SOCKS5_CONNECT 4
 #define SOCKS5_CONNECTED 5
 
+struct pool_block {
+    struct pool_block *next;
+    uint32_t size;
+    int cls;
+} __attribute__((aligned(8)));
+
+struct hosts {
+    uint64_t *table; // name hashes, open addressing, 0 is empty
+    uint32_t mask;
+    int count;
+    int subdomains;
+};
+
 struct context {
     pthread_mutex_t lock;
     int pipefds[2];
     int stopping;
+    volatile int recheck; // set from Java, sessions are checked again
     int sdk;
     struct ng_session *ng_session;
+    struct ng_session *ng_hash[SESSION_HASH];
+    struct ng_session *ng_touched; // sessions to monitor in the next loop
+    int isessions; // active ICMP sessions
+    int usessions; // active UDP sessions
+    int tsessions; // active TCP sessions
+    struct ng_session **ng_heap; // min-heap on deadline
+    int heap_count;
+    int heap_size;
+    int heap_load; // load step the deadlines in the heap were computed for
+    int heap_missed; // sessions could not be added to the heap
+    uint8_t *tun_ring; // tun_batch packets of get_mtu() bytes
+    int tun_batch; // TUN_BATCH, or less when memory is short
+    int tun_batches;
+    int tun_packets;
+    int tun_batch_max;
+    struct pool_block *pool_list[POOL_CLASSES];
+    size_t pool_used; // bytes handed out
+    size_t pool_high; // high water mark of pool_used
+    size_t pool_cached; // bytes in free lists
+    size_t pool_queued; // bytes in queued segments
+    int pool_denied; // segments refused by POOL_MAX
+    struct verdict *verdicts; // VERDICT_CACHE entries
+    volatile int verdict_generation; // set from Java
+    int verdict_hits;
+    int verdict_misses;
+    pthread_mutex_t hosts_lock;
+    struct hosts *hosts;
+    pthread_mutex_t log_lock;
+    struct log_record *log_ring; // LOG_RECORDS records
+    int log_first; // oldest record not released by Java
+    int log_count; // records not released by Java
+    int log_signaled; // Java was told about pending records
+    volatile int log_enabled; // set from Java
+    int log_records;
+    int log_drops;
+    int log_lost; // drops not reported to Java yet
+    struct usage *usage[USAGE_HASH];
+    int usage_count;
+    time_t usage_time; // first usage since the last flush
+    int verdict_async; // verdicts are asked by the worker thread
+    JavaVM *jvm;
+    int verdict_stop;
+    pthread_t verdict_thread;
+    pthread_mutex_t verdict_lock;
+    pthread_cond_t verdict_cond;
+    int verdict_pipefds[2]; // worker > event loop
+    jobject verdict_instance; // global reference for the worker
+    struct verdict_request *verdict_queue; // to the worker
+    struct verdict_request *verdict_done; // from the worker
+    int verdict_pending; // requests not resumed yet
+    long long stall_total; // milliseconds the event loop waited for verdicts
+    int stall_max; // milliseconds
+    int async_count;
+    int async_wait_max; // milliseconds from queued to resumed
+    int async_drops;
 };
 
 struct arguments {
@@ -83,6 +176,7 @@ struct arguments {
     int tun;
     jboolean fwd53;
     jint rcode;
+    jboolean async;
     struct context *ctx;
 };
 
@@ -91,6 +185,67 @@ struct allowed {
     uint16_t rport; // host notation
 };
 
+// Layout is mirrored in ServiceSinkhole
+struct log_record {
+    int64_t time; // milliseconds
+    int32_t uid;
+    uint8_t version;
+    uint8_t protocol;
+    uint8_t allowed;
+    uint8_t unused;
+    uint16_t sport; // host notation
+    uint16_t dport; // host notation
+    char flags[12];
+    char saddr[48];
+    char daddr[48];
+    char data[320];
+};
+
+struct usage {
+    jint version;
+    jint protocol;
+    char daddr[INET6_ADDRSTRLEN + 1];
+    jint dport;
+    jint uid;
+    jlong sent;
+    jlong received;
+    jint connections;
+    struct usage *next;
+};
+
+struct verdict_request {
+    struct verdict_request *next;
+    long long queued; // milliseconds
+    int generation;
+    jint version;
+    jint protocol;
+    jint uid;
+    int syn;
+    char flags[10];
+    char source[INET6_ADDRSTRLEN + 1];
+    char dest[INET6_ADDRSTRLEN + 1];
+    uint16_t sport; // host notation
+    uint16_t dport; // host notation
+    uint8_t daddr[16];
+    int allowed; // set by the worker
+    struct allowed redirect; // set by the worker
+    size_t length;
+    size_t offset; // of the payload
+    uint8_t pkt[];
+};
+
+struct verdict {
+    int generation;
+    time_t time;
+    jint uid;
+    uint8_t version;
+    uint8_t protocol;
+    uint16_t dport; // host notation
+    uint8_t daddr[16];
+    uint8_t allowed;
+    struct allowed redirect;
+};
+
 struct segment {
     uint32_t seq;
     uint16_t len;
@@ -215,7 +370,18 @@ struct ng_session {
     };
     jint socket;
     struct epoll_event ev;
+    uint8_t active;
+    uint8_t last_state;
+    time_t deadline;
+    int heap; // index in heap, -1 if none
+    uint32_t hash;
+    struct ng_session *prev;
     struct ng_session *next;
+    struct ng_session *hprev; // hash bucket
+    struct ng_session *hnext; // hash bucket
+    uint8_t touched;
+    struct ng_session *tprev; // touched list
+    struct ng_session *tnext; // touched list
 };
 
 struct uid_cache_entry {
@@ -226,7 +392,8 @@ struct uid_cache_entry {
     uint8_t daddr[16];
     uint16_t dport;
     jint uid;
-    long time;
+    long long time;
+    struct uid_cache_entry *next;
 };
 
 // IPv6
@@ -356,6 +523,25 @@ void check_allowed(const struct arguments *args);
 
 void clear(struct context *ctx);
 
+uint32_t hash_session(uint8_t protocol, int version,
+                      const void *saddr, __be16 sport,
+                      const void *daddr, __be16 dport);
+
+void add_session(struct context *ctx, struct ng_session *s);
+
+void remove_session(struct context *ctx, struct ng_session *s);
+
+void update_session(struct context *ctx, struct ng_session *s);
+
+void schedule_session(struct context *ctx, struct ng_session *s, time_t deadline);
+
+time_t get_session_deadline(const struct ng_session *s, int sessions, int maxsessions);
+
+struct ng_session *find_session(struct context *ctx,
+                                uint8_t protocol, int version,
+                                const void *saddr, __be16 sport,
+                                const void *daddr, __be16 dport);
+
 int check_icmp_session(const struct arguments *args,
                        struct ng_session *s,
                        int sessions, int maxsessions);
@@ -413,6 +599,9 @@ void handle_ip(const struct arguments *args,
                const int epoll_fd,
                int sessions, int maxsessions);
 
+void resume_ip(const struct arguments *args, struct verdict_request *req, const int epoll_fd,
+               int maxsessions);
+
 jboolean handle_icmp(const struct arguments *args,
                      const uint8_t *pkt, size_t length,
                      const uint8_t *payload,
@@ -443,7 +632,7 @@ int check_domain(const struct arguments *args, const struct udp_session *u,
 int check_dhcp(const struct arguments *args, const struct udp_session *u,
                const uint8_t *data, const size_t datalen);
 
-void clear_tcp_data(struct tcp_session *cur);
+void clear_tcp_data(struct context *ctx, struct tcp_session *cur);
 
 jboolean handle_tcp(const struct arguments *args,
                     const uint8_t *pkt, size_t length,
@@ -497,11 +686,16 @@ jint get_uid(const int version, const int protocol,
              const void *saddr, const uint16_t sport,
              const void *daddr, const uint16_t dport);
 
+jint get_uid_cached(const int version, const int protocol,
+                    const void *saddr, const uint16_t sport,
+                    const void *daddr, const uint16_t dport,
+                    long long now);
+
 jint get_uid_sub(const int version, const int protocol,
                  const void *saddr, const uint16_t sport,
                  const void *daddr, const uint16_t dport,
                  const char *source, const char *dest,
-                 long now);
+                 long long now);
 
 int protect_socket(const struct arguments *args, int socket);
 
@@ -523,15 +717,34 @@ int sdk_int(JNIEnv *env);
 
 void log_android(int prio, const char *fmt, ...);
 
-void log_packet(const struct arguments *args, jobject jpacket);
+void log_record(const struct arguments *args,
+                jint version,
+                jint protocol,
+                const char *flags,
+                const char *source,
+                jint sport,
+                const char *dest,
+                jint dport,
+                const char *data,
+                jint uid,
+                jboolean allowed);
+
+void log_verdict(const struct arguments *args,
+                 jint version,
+                 jint protocol,
+                 const char *flags,
+                 const char *source,
+                 jint sport,
+                 const char *dest,
+                 jint dport,
+                 jint uid,
+                 const struct allowed *redirect);
 
 void log_connection(const struct arguments *args, jobject jpacket);
 
 void dns_resolved(const struct arguments *args,
                   const char *qname, const char *aname, const char *resource, int ttl);
 
-jboolean is_domain_blocked(const struct arguments *args, const char *name);
-
 struct allowed *is_address_allowed(const struct arguments *args, jobject objPacket);
 
 jobject create_packet(const struct arguments *args,
@@ -549,6 +762,8 @@ jobject create_packet(const struct arguments *args,
 void account_usage(const struct arguments *args, jint version, jint protocol,
                    const char *daddr, jint dport, jint uid, jlong sent, jlong received);
 
+void flush_usage(const struct arguments *args);
+
 void write_pcap_hdr();
 
 void write_pcap_rec(const uint8_t *buffer, size_t len);
@@ -567,6 +782,45 @@ int is_writable(int fd);
 
 long long get_ms();
 
+void *alloc_buffer(struct context *ctx, size_t size);
+
+void free_buffer(struct context *ctx, void *buffer);
+
+struct segment *alloc_segment(struct context *ctx, size_t datalen);
+
+void free_segment(struct context *ctx, struct segment *s);
+
+void clear_pool(struct context *ctx);
+
+struct verdict *find_verdict(struct context *ctx,
+                             const int version, const int protocol,
+                             const void *daddr, const uint16_t dport, const jint uid);
+
+void put_verdict(struct context *ctx, const int generation,
+                 const int version, const int protocol,
+                 const void *daddr, const uint16_t dport, const jint uid,
+                 const struct allowed *redirect);
+
+void clear_verdicts(struct context *ctx);
+
+void account_stall(struct context *ctx, long long start);
+
+int start_verdict_worker(const struct arguments *args);
+
+void stop_verdict_worker(const struct arguments *args);
+
+void queue_verdict(const struct arguments *args, struct verdict_request *req);
+
+void check_verdicts(const struct arguments *args, const int epoll_fd, int maxsessions);
+
+struct hosts *create_hosts(int count, int subdomains);
+
+void add_host(struct hosts *hosts, const char *name);
+
+void set_hosts(struct context *ctx, struct hosts *hosts);
+
+jboolean is_domain_blocked(const struct arguments *args, const char *name);
+
 
 
 // ----- ACN ---------------------------------------------------------------------------------------
@@ -0,0 +1,113 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Largest class fits a maximum sized IPv6 UDP packet
+static const size_t pool_class[POOL_CLASSES] = {
+        128, 512, 2048, 8192, 32768, IPV6_MAXPACKET + 64
+};
+
+static int get_pool_class(size_t size) {
+    for (int c = 0; c < POOL_CLASSES; c++)
+        if (size <= pool_class[c])
+            return c;
+    return -1;
+}
+
+void *alloc_buffer(struct context *ctx, size_t size) {
+    int c = get_pool_class(size);
+    size_t bsize = (c < 0 ? size : pool_class[c]);
+
+    struct pool_block *b;
+    if (c >= 0 && ctx->pool_list[c] != NULL) {
+        b = ctx->pool_list[c];
+        ctx->pool_list[c] = b->next;
+        ctx->pool_cached -= bsize;
+    } else {
+        b = malloc(sizeof(struct pool_block) + bsize);
+        if (b == NULL) {
+            log_android(ANDROID_LOG_ERROR, "pool malloc %u failed", bsize);
+            return NULL;
+        }
+        b->cls = c;
+        b->size = (uint32_t) bsize;
+    }
+    b->next = NULL;
+
+    ctx->pool_used += bsize;
+    if (ctx->pool_used > ctx->pool_high)
+        ctx->pool_high = ctx->pool_used;
+
+    return b + 1;
+}
+
+void free_buffer(struct context *ctx, void *buffer) {
+    if (buffer == NULL)
+        return;
+
+    struct pool_block *b = ((struct pool_block *) buffer) - 1;
+    ctx->pool_used -= b->size;
+
+    // Keep a bounded number of free blocks for reuse
+    if (b->cls >= 0 && ctx->pool_cached + b->size <= POOL_CACHE) {
+        b->next = ctx->pool_list[b->cls];
+        ctx->pool_list[b->cls] = b;
+        ctx->pool_cached += b->size;
+    } else
+        free(b);
+}
+
+struct segment *alloc_segment(struct context *ctx, size_t datalen) {
+    size_t size = sizeof(struct segment) + datalen;
+    if (ctx->pool_queued + size > POOL_MAX) {
+        ctx->pool_denied++;
+        log_android(ANDROID_LOG_WARN, "pool queued %u + %u exceeds max %u",
+                    ctx->pool_queued, size, POOL_MAX);
+        return NULL;
+    }
+
+    struct segment *s = alloc_buffer(ctx, size);
+    if (s == NULL)
+        return NULL;
+
+    ctx->pool_queued += size;
+    s->len = (uint16_t) datalen;
+    s->data = (uint8_t *) (s + 1);
+    s->next = NULL;
+    return s;
+}
+
+void free_segment(struct context *ctx, struct segment *s) {
+    ctx->pool_queued -= sizeof(struct segment) + s->len;
+    free_buffer(ctx, s);
+}
+
+void clear_pool(struct context *ctx) {
+    for (int c = 0; c < POOL_CLASSES; c++) {
+        struct pool_block *b = ctx->pool_list[c];
+        while (b != NULL) {
+            struct pool_block *p = b;
+            b = b->next;
+            free(p);
+        }
+        ctx->pool_list[c] = NULL;
+    }
+    ctx->pool_cached = 0;
+}
@@ -26,12 +26,325 @@ void clear(struct context *ctx) {
             log_android(ANDROID_LOG_ERROR, "close %d error %d: %s",
                         s->socket, errno, strerror(errno));
         if (s->protocol == IPPROTO_TCP)
-            clear_tcp_data(&s->tcp);
+            clear_tcp_data(ctx, &s->tcp);
         struct ng_session *p = s;
         s = s->next;
         free(p);
     }
     ctx->ng_session = NULL;
+    memset(ctx->ng_hash, 0, sizeof(ctx->ng_hash));
+    ctx->ng_touched = NULL;
+    ctx->heap_count = 0;
+    ctx->heap_load = 0;
+    ctx->heap_missed = 0;
+    ctx->isessions = 0;
+    ctx->usessions = 0;
+    ctx->tsessions = 0;
+}
+
+static uint32_t fnv1a(uint32_t hash, const void *data, size_t len) {
+    // http://www.isthe.com/chongo/tech/comp/fnv/
+    const uint8_t *p = (const uint8_t *) data;
+    for (size_t i = 0; i < len; i++) {
+        hash ^= p[i];
+        hash *= 16777619;
+    }
+    return hash;
+}
+
+uint32_t hash_session(uint8_t protocol, int version,
+                      const void *saddr, __be16 sport,
+                      const void *daddr, __be16 dport) {
+    size_t alen = (size_t) (version == 4 ? 4 : 16);
+    uint32_t hash = 2166136261;
+    hash = fnv1a(hash, &protocol, sizeof(protocol));
+    hash = fnv1a(hash, saddr, alen);
+    hash = fnv1a(hash, &sport, sizeof(sport));
+    hash = fnv1a(hash, daddr, alen);
+    hash = fnv1a(hash, &dport, sizeof(dport));
+    return hash;
+}
+
+static uint32_t get_session_hash(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return hash_session(s->protocol, s->icmp.version, &s->icmp.saddr, 0, &s->icmp.daddr, 0);
+    else if (s->protocol == IPPROTO_UDP)
+        return hash_session(s->protocol, s->udp.version,
+                            &s->udp.saddr, s->udp.source, &s->udp.daddr, s->udp.dest);
+    else
+        return hash_session(s->protocol, s->tcp.version,
+                            &s->tcp.saddr, s->tcp.source, &s->tcp.daddr, s->tcp.dest);
+}
+
+static uint8_t get_session_state(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return s->icmp.stop;
+    else if (s->protocol == IPPROTO_UDP)
+        return s->udp.state;
+    else
+        return s->tcp.state;
+}
+
+static int is_active_session(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return !s->icmp.stop;
+    else if (s->protocol == IPPROTO_UDP)
+        return (s->udp.state == UDP_ACTIVE);
+    else if (s->protocol == IPPROTO_TCP)
+        return (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE);
+    return 0;
+}
+
+static void count_session(struct context *ctx, const struct ng_session *s, int delta) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        ctx->isessions += delta;
+    else if (s->protocol == IPPROTO_UDP)
+        ctx->usessions += delta;
+    else if (s->protocol == IPPROTO_TCP)
+        ctx->tsessions += delta;
+}
+
+// Sessions are monitored in the next loop only after something happened to them
+static void touch_session(struct context *ctx, struct ng_session *s) {
+    if (s->touched)
+        return;
+    s->touched = 1;
+    s->tprev = NULL;
+    s->tnext = ctx->ng_touched;
+    if (s->tnext != NULL)
+        s->tnext->tprev = s;
+    ctx->ng_touched = s;
+}
+
+static void untouch_session(struct context *ctx, struct ng_session *s) {
+    if (!s->touched)
+        return;
+    s->touched = 0;
+    if (s->tprev == NULL)
+        ctx->ng_touched = s->tnext;
+    else
+        s->tprev->tnext = s->tnext;
+    if (s->tnext != NULL)
+        s->tnext->tprev = s->tprev;
+}
+
+static void heap_set(struct context *ctx, int i, struct ng_session *s) {
+    ctx->ng_heap[i] = s;
+    s->heap = i;
+}
+
+static void heap_up(struct context *ctx, int i) {
+    struct ng_session *s = ctx->ng_heap[i];
+    while (i > 0) {
+        int parent = (i - 1) / 2;
+        if (ctx->ng_heap[parent]->deadline <= s->deadline)
+            break;
+        heap_set(ctx, i, ctx->ng_heap[parent]);
+        i = parent;
+    }
+    heap_set(ctx, i, s);
+}
+
+static void heap_down(struct context *ctx, int i) {
+    struct ng_session *s = ctx->ng_heap[i];
+    while (1) {
+        int child = 2 * i + 1;
+        if (child >= ctx->heap_count)
+            break;
+        if (child + 1 < ctx->heap_count &&
+            ctx->ng_heap[child + 1]->deadline < ctx->ng_heap[child]->deadline)
+            child++;
+        if (s->deadline <= ctx->ng_heap[child]->deadline)
+            break;
+        heap_set(ctx, i, ctx->ng_heap[child]);
+        i = child;
+    }
+    heap_set(ctx, i, s);
+}
+
+static void unschedule_session(struct context *ctx, struct ng_session *s) {
+    int i = s->heap;
+    if (i < 0)
+        return;
+    s->heap = -1;
+
+    struct ng_session *last = ctx->ng_heap[--ctx->heap_count];
+    if (last != s) {
+        heap_set(ctx, i, last);
+        heap_up(ctx, i);
+        heap_down(ctx, last->heap);
+    }
+}
+
+void schedule_session(struct context *ctx, struct ng_session *s, time_t deadline) {
+    if (s->heap < 0) {
+        if (ctx->heap_count == ctx->heap_size) {
+            int size = (ctx->heap_size == 0 ? SESSION_MAX : ctx->heap_size * 2);
+            struct ng_session **heap = realloc(ctx->ng_heap, size * sizeof(struct ng_session *));
+            if (heap == NULL) {
+                // Retried on the next loop
+                log_android(ANDROID_LOG_ERROR, "heap realloc %d failed", size);
+                ctx->heap_missed = 1;
+                return;
+            }
+            ctx->ng_heap = heap;
+            ctx->heap_size = size;
+        }
+        s->deadline = deadline;
+        heap_set(ctx, ctx->heap_count++, s);
+        heap_up(ctx, s->heap);
+    } else {
+        time_t previous = s->deadline;
+        s->deadline = deadline;
+        if (deadline < previous)
+            heap_up(ctx, s->heap);
+        else
+            heap_down(ctx, s->heap);
+    }
+}
+
+// Timeouts shrink with the number of sessions, so deadlines computed for a lower load are too late
+static void reschedule_sessions(struct context *ctx, int sessions, int maxsessions) {
+    for (int i = 0; i < ctx->heap_count; i++)
+        ctx->ng_heap[i]->deadline = get_session_deadline(ctx->ng_heap[i], sessions, maxsessions);
+    for (int i = ctx->heap_count / 2 - 1; i >= 0; i--)
+        heap_down(ctx, i);
+}
+
+time_t get_session_deadline(const struct ng_session *s, int sessions, int maxsessions) {
+    // Mirrors the conditions of check_*_session
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+        if (s->icmp.stop)
+            return 0;
+        return s->icmp.time + get_icmp_timeout(&s->icmp, sessions, maxsessions) + 1;
+
+    } else if (s->protocol == IPPROTO_UDP) {
+        if (s->udp.state == UDP_ACTIVE)
+            return s->udp.time + get_udp_timeout(&s->udp, sessions, maxsessions) + 1;
+        else if (s->udp.state == UDP_FINISHING)
+            return 0;
+        else
+            return s->udp.time + UDP_KEEP_TIMEOUT + 1;
+
+    } else {
+        if (s->tcp.state == TCP_CLOSING)
+            return 0;
+        else if (s->tcp.state == TCP_CLOSE)
+            return s->tcp.time + TCP_KEEP_TIMEOUT + 1;
+        else
+            return s->tcp.time + get_tcp_timeout(&s->tcp, sessions, maxsessions) + 1;
+    }
+}
+
+void add_session(struct context *ctx, struct ng_session *s) {
+    // Session list
+    s->prev = NULL;
+    s->next = ctx->ng_session;
+    if (s->next != NULL)
+        s->next->prev = s;
+    ctx->ng_session = s;
+
+    // Hash bucket
+    s->hash = get_session_hash(s);
+    struct ng_session **bucket = &ctx->ng_hash[s->hash & (SESSION_HASH - 1)];
+    s->hprev = NULL;
+    s->hnext = *bucket;
+    if (s->hnext != NULL)
+        s->hnext->hprev = s;
+    *bucket = s;
+
+    s->active = (uint8_t) is_active_session(s);
+    if (s->active)
+        count_session(ctx, s, 1);
+
+    // Check right away to get a deadline for the current load
+    s->last_state = get_session_state(s);
+    s->heap = -1;
+    schedule_session(ctx, s, 0);
+
+    s->touched = 0;
+    touch_session(ctx, s);
+}
+
+void remove_session(struct context *ctx, struct ng_session *s) {
+    // Session list
+    if (s->prev == NULL)
+        ctx->ng_session = s->next;
+    else
+        s->prev->next = s->next;
+    if (s->next != NULL)
+        s->next->prev = s->prev;
+
+    // Hash bucket
+    if (s->hprev == NULL)
+        ctx->ng_hash[s->hash & (SESSION_HASH - 1)] = s->hnext;
+    else
+        s->hprev->hnext = s->hnext;
+    if (s->hnext != NULL)
+        s->hnext->hprev = s->hprev;
+
+    if (s->active)
+        count_session(ctx, s, -1);
+    s->active = 0;
+
+    unschedule_session(ctx, s);
+    untouch_session(ctx, s);
+}
+
+static void refresh_session(struct context *ctx, struct ng_session *s) {
+    uint8_t active = (uint8_t) is_active_session(s);
+    if (active != s->active) {
+        count_session(ctx, s, active ? 1 : -1);
+        s->active = active;
+    }
+
+    // A state change can shorten the deadline
+    uint8_t state = get_session_state(s);
+    if (state != s->last_state) {
+        s->last_state = state;
+        schedule_session(ctx, s, 0);
+    }
+}
+
+void update_session(struct context *ctx, struct ng_session *s) {
+    refresh_session(ctx, s);
+    touch_session(ctx, s);
+}
+
+// Sessions are looked up for packets from the tun, so a found session is touched
+struct ng_session *find_session(struct context *ctx,
+                                uint8_t protocol, int version,
+                                const void *saddr, __be16 sport,
+                                const void *daddr, __be16 dport) {
+    size_t alen = (size_t) (version == 4 ? 4 : 16);
+    uint32_t hash = hash_session(protocol, version, saddr, sport, daddr, dport);
+    struct ng_session *s = ctx->ng_hash[hash & (SESSION_HASH - 1)];
+    while (s != NULL) {
+        if (s->hash == hash && s->protocol == protocol) {
+            if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) {
+                if (!s->icmp.stop && s->icmp.version == version &&
+                    memcmp(&s->icmp.saddr, saddr, alen) == 0 &&
+                    memcmp(&s->icmp.daddr, daddr, alen) == 0)
+                    break;
+            } else if (protocol == IPPROTO_UDP) {
+                if (s->udp.version == version &&
+                    s->udp.source == sport && s->udp.dest == dport &&
+                    memcmp(&s->udp.saddr, saddr, alen) == 0 &&
+                    memcmp(&s->udp.daddr, daddr, alen) == 0)
+                    break;
+            } else if (protocol == IPPROTO_TCP) {
+                if (s->tcp.version == version &&
+                    s->tcp.source == sport && s->tcp.dest == dport &&
+                    memcmp(&s->tcp.saddr, saddr, alen) == 0 &&
+                    memcmp(&s->tcp.daddr, daddr, alen) == 0)
+                    break;
+            }
+        }
+        s = s->hnext;
+    }
+    if (s != NULL)
+        touch_session(ctx, s);
+    return s;
 }
 
 void *handle_events(void *a) {
@@ -84,91 +397,105 @@ void *handle_events(void *a) {
         args->ctx->stopping = 1;
     }
 
+    // Monitor verdicts from the worker
+    struct epoll_event ev_verdict;
+    memset(&ev_verdict, 0, sizeof(struct epoll_event));
+    ev_verdict.events = EPOLLIN | EPOLLERR;
+    ev_verdict.data.ptr = &ev_verdict;
+    if (args->async && start_verdict_worker(args) == 0 &&
+        epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->ctx->verdict_pipefds[0], &ev_verdict)) {
+        log_android(ANDROID_LOG_ERROR, "epoll add verdict error %d: %s", errno, strerror(errno));
+        stop_verdict_worker(args);
+    }
+    log_android(ANDROID_LOG_WARN, "Verdicts async %d", args->ctx->verdict_async);
+
     // Loop
-    long long last_check = 0;
     while (!args->ctx->stopping) {
         log_android(ANDROID_LOG_DEBUG, "Loop");
 
         int recheck = 0;
         int timeout = EPOLL_TIMEOUT;
 
-        // Count sessions
-        int isessions = 0;
-        int usessions = 0;
-        int tsessions = 0;
-        struct ng_session *s = args->ctx->ng_session;
+        // Monitor touched sessions
+        // Sessions waiting for a send window or buffer space stay touched until the next loop
+        struct ng_session *s = args->ctx->ng_touched;
+        args->ctx->ng_touched = NULL;
         while (s != NULL) {
-            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                if (!s->icmp.stop)
-                    isessions++;
-            } else if (s->protocol == IPPROTO_UDP) {
-                if (s->udp.state == UDP_ACTIVE)
-                    usessions++;
-            } else if (s->protocol == IPPROTO_TCP) {
-                if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                    tsessions++;
-                if (s->socket >= 0)
-                    recheck = recheck | monitor_tcp_session(args, s, epoll_fd);
+            struct ng_session *next = s->tnext;
+            s->touched = 0;
+            int wait = 0;
+            if (s->protocol == IPPROTO_TCP && s->socket >= 0)
+                wait = monitor_tcp_session(args, s, epoll_fd);
+            refresh_session(args->ctx, s);
+            if (wait) {
+                recheck = 1;
+                touch_session(args->ctx, s);
             }
-            s = s->next;
+            s = next;
         }
-        int sessions = isessions + usessions + tsessions;
 
-        // Check sessions
-        long long ms = get_ms();
-        if (ms - last_check > EPOLL_MIN_CHECK) {
-            last_check = ms;
-
-            time_t now = time(NULL);
-            struct ng_session *sl = NULL;
-            s = args->ctx->ng_session;
-            while (s != NULL) {
-                int del = 0;
-                if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                    del = check_icmp_session(args, s, sessions, maxsessions);
-                    if (!s->icmp.stop && !del) {
-                        int stimeout = s->icmp.time +
-                                       get_icmp_timeout(&s->icmp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_UDP) {
-                    del = check_udp_session(args, s, sessions, maxsessions);
-                    if (s->udp.state == UDP_ACTIVE && !del) {
-                        int stimeout = s->udp.time +
-                                       get_udp_timeout(&s->udp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_TCP) {
-                    del = check_tcp_session(args, s, sessions, maxsessions);
-                    if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE && !del) {
-                        int stimeout = s->tcp.time +
-                                       get_tcp_timeout(&s->tcp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                }
+        // Count sessions
+        int isessions = args->ctx->isessions;
+        int usessions = args->ctx->usessions;
+        int tsessions = args->ctx->tsessions;
+        int sessions = isessions + usessions + tsessions;
 
-                if (del) {
-                    if (sl == NULL)
-                        args->ctx->ng_session = s->next;
-                    else
-                        sl->next = s->next;
+        // Schedule sessions which did not fit in the heap
+        if (args->ctx->heap_missed) {
+            args->ctx->heap_missed = 0;
+            for (s = args->ctx->ng_session; s != NULL; s = s->next)
+                if (s->heap < 0)
+                    schedule_session(args->ctx, s, 0);
+        }
 
-                    struct ng_session *c = s;
-                    s = s->next;
-                    if (c->protocol == IPPROTO_TCP)
-                        clear_tcp_data(&c->tcp);
-                    free(c);
-                } else {
-                    sl = s;
-                    s = s->next;
-                }
+        // Recompute deadlines when the load rises
+        int load = sessions * SESSION_LOAD_STEPS / maxsessions;
+        if (load > args->ctx->heap_load) {
+            log_android(ANDROID_LOG_DEBUG, "Reschedule sessions load %d/%d", load, SESSION_LOAD_STEPS);
+            reschedule_sessions(args->ctx, sessions, maxsessions);
+        }
+        args->ctx->heap_load = load;
+
+        // Check expired sessions
+        time_t now = time(NULL);
+        while (args->ctx->heap_count > 0 && args->ctx->ng_heap[0]->deadline <= now) {
+            s = args->ctx->ng_heap[0];
+
+            int del = 0;
+            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+                del = check_icmp_session(args, s, sessions, maxsessions);
+            else if (s->protocol == IPPROTO_UDP)
+                del = check_udp_session(args, s, sessions, maxsessions);
+            else if (s->protocol == IPPROTO_TCP)
+                del = check_tcp_session(args, s, sessions, maxsessions);
+
+            update_session(args->ctx, s);
+
+            if (del) {
+                remove_session(args->ctx, s);
+                if (s->protocol == IPPROTO_TCP)
+                    clear_tcp_data(args->ctx, &s->tcp);
+                free(s);
+            } else {
+                time_t deadline = get_session_deadline(s, sessions, maxsessions);
+                schedule_session(args->ctx, s, deadline > now ? deadline : now + 1);
             }
-        } else {
-            recheck = 1;
-            log_android(ANDROID_LOG_DEBUG, "Skipped session checks");
+        }
+
+        // Flush aggregated usage
+        if (args->ctx->usage_count > 0) {
+            time_t flush = args->ctx->usage_time + USAGE_FLUSH - now;
+            if (flush <= 0)
+                flush_usage(args);
+            else if (flush < timeout)
+                timeout = (int) flush;
+        }
+
+        // Wait until the first deadline
+        if (args->ctx->heap_count > 0) {
+            time_t first = args->ctx->ng_heap[0]->deadline - now;
+            if (first > 0 && first < timeout)
+                timeout = (int) first;
         }
 
         log_android(ANDROID_LOG_DEBUG,
@@ -213,6 +540,16 @@ void *handle_events(void *a) {
                     else
                         log_android(ANDROID_LOG_WARN, "Read pipe");
 
+                    // Rules were updated without restarting
+                    if (args->ctx->recheck) {
+                        args->ctx->recheck = 0;
+                        check_allowed(args);
+                    }
+
+                } else if (ev[i].data.ptr == &ev_verdict) {
+                    // Check verdicts
+                    check_verdicts(args, epoll_fd, maxsessions);
+
                 } else if (ev[i].data.ptr == NULL) {
                     // Check upstream
                     log_android(ANDROID_LOG_DEBUG, "epoll ready %d/%d in %d out %d err %d hup %d",
@@ -248,6 +585,8 @@ void *handle_events(void *a) {
                             check_udp_socket(args, &ev[i]);
                     } else if (session->protocol == IPPROTO_TCP)
                         check_tcp_socket(args, &ev[i], epoll_fd);
+
+                    update_session(args->ctx, session);
                 }
 
                 if (error)
@@ -262,6 +601,18 @@ void *handle_events(void *a) {
         }
     }
 
+    // Flush remaining usage
+    flush_usage(args);
+
+    stop_verdict_worker(args);
+    log_android(ANDROID_LOG_WARN, "verdict stall %lld ms max %d async %d wait max %d drops %d",
+                args->ctx->stall_total, args->ctx->stall_max,
+                args->ctx->async_count, args->ctx->async_wait_max, args->ctx->async_drops);
+
+    log_android(ANDROID_LOG_WARN, "tun batches %d packets %d max %d/%d",
+                args->ctx->tun_batches, args->ctx->tun_packets,
+                args->ctx->tun_batch_max, args->ctx->tun_batch);
+
     // Close epoll file
     if (epoll_fd >= 0 && close(epoll_fd))
         log_android(ANDROID_LOG_ERROR,
@@ -278,7 +629,6 @@ void check_allowed(const struct arguments *args) {
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
-    struct ng_session *l = NULL;
     struct ng_session *s = args->ctx->ng_session;
     while (s != NULL) {
         if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
@@ -294,7 +644,10 @@ void check_allowed(const struct arguments *args) {
                 jobject objPacket = create_packet(
                         args, s->icmp.version, IPPROTO_ICMP, "",
                         source, 0, dest, 0, "", s->icmp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                struct allowed *redirect = is_address_allowed(args, objPacket);
+                log_verdict(args, s->icmp.version, IPPROTO_ICMP, "",
+                            source, 0, dest, 0, s->icmp.uid, redirect);
+                if (redirect == NULL) {
                     s->icmp.stop = 1;
                     log_android(ANDROID_LOG_WARN, "ICMP terminate %d uid %d",
                                 s->socket, s->icmp.uid);
@@ -314,7 +667,11 @@ void check_allowed(const struct arguments *args) {
                 jobject objPacket = create_packet(
                         args, s->udp.version, IPPROTO_UDP, "",
                         source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), "", s->udp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                struct allowed *redirect = is_address_allowed(args, objPacket);
+                log_verdict(args, s->udp.version, IPPROTO_UDP, "",
+                            source, ntohs(s->udp.source), dest, ntohs(s->udp.dest),
+                            s->udp.uid, redirect);
+                if (redirect == NULL) {
                     s->udp.state = UDP_FINISHING;
                     log_android(ANDROID_LOG_WARN, "UDP terminate session socket %d uid %d",
                                 s->socket, s->udp.uid);
@@ -322,13 +679,9 @@ void check_allowed(const struct arguments *args) {
             } else if (s->udp.state == UDP_BLOCKED) {
                 log_android(ANDROID_LOG_WARN, "UDP remove blocked session uid %d", s->udp.uid);
 
-                if (l == NULL)
-                    args->ctx->ng_session = s->next;
-                else
-                    l->next = s->next;
-
                 struct ng_session *c = s;
                 s = s->next;
+                remove_session(args->ctx, c);
                 free(c);
                 continue;
             }
@@ -355,7 +708,7 @@ void check_allowed(const struct arguments *args) {
 
         }
 
-        l = s;
+        update_session(args->ctx, s);
         s = s->next;
     }
 }
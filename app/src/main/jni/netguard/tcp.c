@@ -26,14 +26,14 @@ extern char socks5_password[127 + 1];
 
 extern FILE *pcap_file;
 
-void clear_tcp_data(struct tcp_session *cur) {
+void clear_tcp_data(struct context *ctx, struct tcp_session *cur) {
     struct segment *s = cur->forward;
     while (s != NULL) {
         struct segment *p = s;
         s = s->next;
-        free(p->data);
-        free(p);
+        free_segment(ctx, p);
     }
+    cur->forward = NULL;
 
     freeParserData(cur);
 }
@@ -543,8 +543,7 @@ void check_tcp_socket(const struct arguments *args,
                         if (s->tcp.forward->len == s->tcp.forward->sent) {
                             struct segment *p = s->tcp.forward;
                             s->tcp.forward = s->tcp.forward->next;
-                            free(p->data);
-                            free(p);
+                            free_segment(args->ctx, p);
                         } else {
                             log_android(ANDROID_LOG_WARN,
                                         "%s partial send %u/%u",
@@ -594,7 +593,7 @@ void check_tcp_socket(const struct arguments *args,
 
                     uint32_t buffer_size = (send_window > s->tcp.mss
                                             ? s->tcp.mss : send_window);
-                    uint8_t *buffer = malloc(buffer_size);
+                    uint8_t *buffer = alloc_buffer(args->ctx, buffer_size);
                     ssize_t bytes = recv(s->socket, buffer, (size_t) buffer_size, 0);
                     if (bytes < 0) {
                         // Socket error
@@ -654,7 +653,7 @@ void check_tcp_socket(const struct arguments *args,
                         if (write_data(args, &s->tcp, buffer, (size_t) bytes) >= 0)
                             s->tcp.local_seq += bytes;
                     }
-                    free(buffer);
+                    free_buffer(args->ctx, buffer);
                 }
             }
         }
@@ -681,16 +680,12 @@ jboolean handle_tcp(const struct arguments *args,
     const uint16_t datalen = (const uint16_t) (length - (data - pkt));
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_TCP &&
-             cur->tcp.version == version &&
-             cur->tcp.source == tcphdr->source && cur->tcp.dest == tcphdr->dest &&
-             (version == 4 ? cur->tcp.saddr.ip4 == ip4->saddr &&
-                             cur->tcp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->tcp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->ctx, IPPROTO_TCP, version,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            tcphdr->source,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            tcphdr->dest);
 
     // Prepare logging
     char source[INET6_ADDRSTRLEN + 1];
@@ -807,20 +802,20 @@ jboolean handle_tcp(const struct arguments *args,
 
             if (datalen) {
                 log_android(ANDROID_LOG_WARN, "%s SYN data", packet);
-                s->tcp.forward = malloc(sizeof(struct segment));
-                s->tcp.forward->seq = s->tcp.remote_seq;
-                s->tcp.forward->len = datalen;
-                s->tcp.forward->sent = 0;
-                s->tcp.forward->psh = tcphdr->psh;
-                s->tcp.forward->data = malloc(datalen);
-                memcpy(s->tcp.forward->data, data, datalen);
-                s->tcp.forward->next = NULL;
+                s->tcp.forward = alloc_segment(args->ctx, datalen);
+                if (s->tcp.forward != NULL) {
+                    s->tcp.forward->seq = s->tcp.remote_seq;
+                    s->tcp.forward->sent = 0;
+                    s->tcp.forward->psh = tcphdr->psh;
+                    memcpy(s->tcp.forward->data, data, datalen);
+                }
             }
 
             // Open socket
             s->socket = open_tcp_socket(args, &s->tcp, redirect);
             if (s->socket < 0) {
                 // Remote might retry
+                clear_tcp_data(args->ctx, &s->tcp);
                 free(s);
                 return 0;
             }
@@ -838,12 +833,12 @@ jboolean handle_tcp(const struct arguments *args,
                 log_android(ANDROID_LOG_ERROR, "epoll add tcp error %d: %s",
                             errno, strerror(errno));
 
-            s->next = args->ctx->ng_session;
-            args->ctx->ng_session = s;
+            add_session(args->ctx, s);
 
             if (!allowed) {
                 log_android(ANDROID_LOG_WARN, "%s resetting blocked session", packet);
                 write_rst(args, &s->tcp);
+                update_session(args->ctx, s);
             }
         } else {
             log_android(ANDROID_LOG_WARN, "%s unknown session", packet);
@@ -1041,12 +1036,17 @@ void queue_tcp(const struct arguments *args,
             log_android(ANDROID_LOG_DEBUG, "%s queuing %u...%u",
                         session,
                         seq - cur->remote_start, seq + datalen - cur->remote_start);
-            struct segment *n = malloc(sizeof(struct segment));
+            struct segment *n = alloc_segment(args->ctx, datalen);
+            if (n == NULL) {
+                // Not acknowledged, remote will retransmit
+                log_android(ANDROID_LOG_WARN, "%s dropped %u...%u",
+                            session,
+                            seq - cur->remote_start, seq + datalen - cur->remote_start);
+                return;
+            }
             n->seq = seq;
-            n->len = datalen;
             n->sent = 0;
             n->psh = tcphdr->psh;
-            n->data = malloc(datalen);
             memcpy(n->data, data, datalen);
             n->next = s;
             if (p == NULL)
@@ -1063,9 +1063,19 @@ void queue_tcp(const struct arguments *args,
                             session,
                             s->seq - cur->remote_start, s->seq + s->len - cur->remote_start,
                             s->seq + datalen - cur->remote_start);
-                free(s->data);
-                s->data = malloc(datalen);
-                memcpy(s->data, data, datalen);
+                struct segment *n = alloc_segment(args->ctx, datalen);
+                if (n != NULL) {
+                    n->seq = s->seq;
+                    n->sent = s->sent;
+                    n->psh = s->psh;
+                    memcpy(n->data, data, datalen);
+                    n->next = s->next;
+                    if (p == NULL)
+                        cur->forward = n;
+                    else
+                        p->next = n;
+                    free_segment(args->ctx, s);
+                }
             } else
                 log_android(ANDROID_LOG_ERROR, "%s segment larger %u..%u < %u",
                             session,
@@ -1223,7 +1233,7 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
     uint8_t *options;
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = malloc(len);
+        buffer = alloc_buffer(args->ctx, len);
         struct iphdr *ip4 = (struct iphdr *) buffer;
         tcp = (struct tcphdr *) (buffer + sizeof(struct iphdr));
         options = buffer + sizeof(struct iphdr) + sizeof(struct tcphdr);
@@ -1255,7 +1265,7 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
 
     } else {
         len = sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = malloc(len);
+        buffer = alloc_buffer(args->ctx, len);
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         tcp = (struct tcphdr *) (buffer + sizeof(struct ip6_hdr));
         options = buffer + sizeof(struct ip6_hdr) + sizeof(struct tcphdr);
@@ -1352,7 +1362,7 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                     datalen,
                     errno, strerror((errno)));
 
-    free(buffer);
+    free_buffer(args->ctx, buffer);
 
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "TCP write %d/%d", res, len);
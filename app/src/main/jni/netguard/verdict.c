@@ -0,0 +1,313 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2018 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Direct mapped, a colliding verdict replaces the previous one
+
+static uint32_t hash_verdict(const int version, const int protocol,
+                             const void *daddr, const uint16_t dport, const jint uid) {
+    // http://www.isthe.com/chongo/tech/comp/fnv/
+    uint8_t key[4 + 16 + 2 + 1];
+    size_t alen = (size_t) (version == 4 ? 4 : 16);
+    memcpy(key, &uid, 4);
+    memcpy(key + 4, daddr, alen);
+    memcpy(key + 4 + alen, &dport, 2);
+    key[4 + alen + 2] = (uint8_t) protocol;
+
+    uint32_t hash = 2166136261;
+    for (size_t i = 0; i < 4 + alen + 2 + 1; i++) {
+        hash ^= key[i];
+        hash *= 16777619;
+    }
+    return hash;
+}
+
+struct verdict *find_verdict(struct context *ctx,
+                             const int version, const int protocol,
+                             const void *daddr, const uint16_t dport, const jint uid) {
+    if (ctx->verdicts == NULL)
+        return NULL;
+
+    size_t alen = (size_t) (version == 4 ? 4 : 16);
+    uint32_t hash = hash_verdict(version, protocol, daddr, dport, uid);
+    struct verdict *v = &ctx->verdicts[hash & (VERDICT_CACHE - 1)];
+
+    if (v->generation == ctx->verdict_generation &&
+        v->time + VERDICT_TTL > time(NULL) &&
+        v->uid == uid &&
+        v->version == version &&
+        v->protocol == protocol &&
+        v->dport == dport &&
+        memcmp(v->daddr, daddr, alen) == 0) {
+        ctx->verdict_hits++;
+        return v;
+    }
+
+    ctx->verdict_misses++;
+    return NULL;
+}
+
+void put_verdict(struct context *ctx, const int generation,
+                 const int version, const int protocol,
+                 const void *daddr, const uint16_t dport, const jint uid,
+                 const struct allowed *redirect) {
+    if (ctx->verdicts == NULL)
+        return;
+
+    size_t alen = (size_t) (version == 4 ? 4 : 16);
+    uint32_t hash = hash_verdict(version, protocol, daddr, dport, uid);
+    struct verdict *v = &ctx->verdicts[hash & (VERDICT_CACHE - 1)];
+
+    // Generation as read before the verdict was asked for
+    v->generation = generation;
+    v->time = time(NULL);
+    v->uid = uid;
+    v->version = (uint8_t) version;
+    v->protocol = (uint8_t) protocol;
+    v->dport = dport;
+    memset(v->daddr, 0, sizeof(v->daddr));
+    memcpy(v->daddr, daddr, alen);
+    v->allowed = (uint8_t) (redirect != NULL);
+    if (redirect == NULL)
+        memset(&v->redirect, 0, sizeof(struct allowed));
+    else
+        memcpy(&v->redirect, redirect, sizeof(struct allowed));
+}
+
+void clear_verdicts(struct context *ctx) {
+    if (ctx->verdicts != NULL)
+        memset(ctx->verdicts, 0, VERDICT_CACHE * sizeof(struct verdict));
+    ctx->verdict_hits = 0;
+    ctx->verdict_misses = 0;
+}
+
+void account_stall(struct context *ctx, long long start) {
+    int ms = (int) (get_ms() - start);
+    ctx->stall_total += ms;
+    if (ms > ctx->stall_max)
+        ctx->stall_max = ms;
+}
+
+static void *handle_verdicts(void *data) {
+    struct arguments *args = (struct arguments *) data;
+    struct context *ctx = args->ctx;
+    log_android(ANDROID_LOG_WARN, "Start verdict worker");
+
+    JavaVM *jvm = ctx->jvm;
+    if ((*jvm)->AttachCurrentThread(jvm, &args->env, NULL) != JNI_OK) {
+        log_android(ANDROID_LOG_ERROR, "Verdict worker attach failed");
+        free(args);
+        return NULL;
+    }
+
+    while (1) {
+        if (pthread_mutex_lock(&ctx->verdict_lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+        while (!ctx->verdict_stop && ctx->verdict_queue == NULL)
+            pthread_cond_wait(&ctx->verdict_cond, &ctx->verdict_lock);
+
+        struct verdict_request *req = NULL;
+        if (!ctx->verdict_stop) {
+            req = ctx->verdict_queue;
+            ctx->verdict_queue = req->next;
+            req->next = NULL;
+        }
+
+        if (pthread_mutex_unlock(&ctx->verdict_lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+        if (req == NULL)
+            break;
+
+        // Ask Java without holding up the event loop
+        jobject objPacket = create_packet(
+                args, req->version, req->protocol, req->flags,
+                req->source, req->sport, req->dest, req->dport, "", req->uid, 0);
+        struct allowed *redirect = is_address_allowed(args, objPacket);
+        req->allowed = (redirect != NULL);
+        if (redirect != NULL)
+            memcpy(&req->redirect, redirect, sizeof(struct allowed));
+
+        if (pthread_mutex_lock(&ctx->verdict_lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+        struct verdict_request **last = &ctx->verdict_done;
+        while (*last != NULL)
+            last = &(*last)->next;
+        *last = req;
+
+        if (pthread_mutex_unlock(&ctx->verdict_lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+        // Wakeup event loop, a full pipe is already pending
+        if (write(ctx->verdict_pipefds[1], "v", 1) < 0 && errno != EAGAIN)
+            log_android(ANDROID_LOG_WARN, "Write verdict pipe error %d: %s",
+                        errno, strerror(errno));
+    }
+
+    (*jvm)->DetachCurrentThread(jvm);
+    free(args);
+
+    log_android(ANDROID_LOG_WARN, "Stopped verdict worker");
+    return NULL;
+}
+
+int start_verdict_worker(const struct arguments *args) {
+    struct context *ctx = args->ctx;
+
+    if (pipe(ctx->verdict_pipefds)) {
+        log_android(ANDROID_LOG_ERROR, "Create verdict pipe error %d: %s",
+                    errno, strerror(errno));
+        return -1;
+    }
+    for (int i = 0; i < 2; i++) {
+        int flags = fcntl(ctx->verdict_pipefds[i], F_GETFL, 0);
+        if (flags < 0 || fcntl(ctx->verdict_pipefds[i], F_SETFL, flags | O_NONBLOCK) < 0)
+            log_android(ANDROID_LOG_ERROR, "fcntl verdict pipefds[%d] O_NONBLOCK error %d: %s",
+                        i, errno, strerror(errno));
+    }
+
+    (*args->env)->GetJavaVM(args->env, &ctx->jvm);
+    ctx->verdict_instance = (*args->env)->NewGlobalRef(args->env, args->instance);
+    ctx->verdict_stop = 0;
+    ctx->verdict_queue = NULL;
+    ctx->verdict_done = NULL;
+    ctx->verdict_pending = 0;
+
+    // The worker has its own environment
+    struct arguments *wargs = malloc(sizeof(struct arguments));
+    memcpy(wargs, args, sizeof(struct arguments));
+    wargs->env = NULL;
+    wargs->instance = ctx->verdict_instance;
+
+    int err = pthread_create(&ctx->verdict_thread, NULL, handle_verdicts, wargs);
+    if (err) {
+        log_android(ANDROID_LOG_ERROR, "pthread_create error %d: %s", err, strerror(err));
+        free(wargs);
+        (*args->env)->DeleteGlobalRef(args->env, ctx->verdict_instance);
+        for (int i = 0; i < 2; i++)
+            close(ctx->verdict_pipefds[i]);
+        return -1;
+    }
+
+    ctx->verdict_async = 1;
+    return 0;
+}
+
+static void free_requests(struct context *ctx, struct verdict_request *req) {
+    while (req != NULL) {
+        struct verdict_request *r = req;
+        req = req->next;
+        free_buffer(ctx, r);
+    }
+}
+
+void stop_verdict_worker(const struct arguments *args) {
+    struct context *ctx = args->ctx;
+    if (!ctx->verdict_async)
+        return;
+
+    if (pthread_mutex_lock(&ctx->verdict_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    ctx->verdict_stop = 1;
+    pthread_cond_signal(&ctx->verdict_cond);
+    if (pthread_mutex_unlock(&ctx->verdict_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    int err = pthread_join(ctx->verdict_thread, NULL);
+    if (err)
+        log_android(ANDROID_LOG_ERROR, "pthread_join error %d: %s", err, strerror(err));
+
+    // Packets waiting for a verdict are dropped
+    free_requests(ctx, ctx->verdict_queue);
+    free_requests(ctx, ctx->verdict_done);
+    ctx->verdict_queue = NULL;
+    ctx->verdict_done = NULL;
+    ctx->verdict_pending = 0;
+
+    for (int i = 0; i < 2; i++)
+        if (close(ctx->verdict_pipefds[i]))
+            log_android(ANDROID_LOG_ERROR, "Close verdict pipe error %d: %s",
+                        errno, strerror(errno));
+
+    (*args->env)->DeleteGlobalRef(args->env, ctx->verdict_instance);
+    ctx->verdict_instance = NULL;
+    ctx->verdict_async = 0;
+}
+
+void queue_verdict(const struct arguments *args, struct verdict_request *req) {
+    struct context *ctx = args->ctx;
+
+    if (ctx->verdict_pending >= VERDICT_QUEUE) {
+        ctx->async_drops++;
+        log_android(ANDROID_LOG_WARN, "Verdict queue full, dropping v%d p%d %s/%u",
+                    req->version, req->protocol, req->dest, req->dport);
+        free_buffer(ctx, req);
+        return;
+    }
+
+    req->next = NULL;
+    req->queued = get_ms();
+
+    if (pthread_mutex_lock(&ctx->verdict_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct verdict_request **last = &ctx->verdict_queue;
+    while (*last != NULL)
+        last = &(*last)->next;
+    *last = req;
+    pthread_cond_signal(&ctx->verdict_cond);
+
+    if (pthread_mutex_unlock(&ctx->verdict_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    ctx->verdict_pending++;
+    ctx->async_count++;
+}
+
+void check_verdicts(const struct arguments *args, const int epoll_fd, int maxsessions) {
+    struct context *ctx = args->ctx;
+
+    uint8_t buffer[VERDICT_QUEUE];
+    while (read(ctx->verdict_pipefds[0], buffer, sizeof(buffer)) > 0);
+
+    if (pthread_mutex_lock(&ctx->verdict_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct verdict_request *req = ctx->verdict_done;
+    ctx->verdict_done = NULL;
+
+    if (pthread_mutex_unlock(&ctx->verdict_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    while (req != NULL) {
+        struct verdict_request *r = req;
+        req = req->next;
+
+        ctx->verdict_pending--;
+        int wait = (int) (get_ms() - r->queued);
+        if (wait > ctx->async_wait_max)
+            ctx->async_wait_max = wait;
+
+        resume_ip(args, r, epoll_fd, maxsessions);
+        free_buffer(ctx, r);
+    }
+}